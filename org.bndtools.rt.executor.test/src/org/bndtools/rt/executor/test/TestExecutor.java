@@ -2,14 +2,30 @@ package org.bndtools.rt.executor.test;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
+import org.bndtools.service.executor.SharedExecutor;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
@@ -37,12 +53,19 @@ public class TestExecutor extends TestCase {
 			.getBundleContext();
 
 	
+	static Configuration conf_resizable;
+
 	static {
 		try {
 			ConfigurationAdmin confAdmin = (ConfigurationAdmin) context
 					.getService(context.getServiceReference(ConfigurationAdmin.class));
 			Configuration conf_fixed_2 = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
 			Configuration conf_single = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
+			Configuration conf_work_stealing = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
+			Configuration conf_virtual = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
+			Configuration conf_bounded = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
+			Configuration conf_fair = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
+			conf_resizable = confAdmin.createFactoryConfiguration("org.bndtools.rt.executor.ExecutorImpl", null);
 			
 			Dictionary<String, Object> properties = new Hashtable<String, Object>();
 			properties.put("type", "FIXED");
@@ -55,6 +78,44 @@ public class TestExecutor extends TestCase {
 			properties.put("service.ranking", 0);
 			conf_single.update(properties);
 			
+			properties.put("type", "WORK_STEALING");
+			properties.put("parallelism", 2);
+			properties.put("asyncMode", true);
+			properties.put("service.ranking", -10);
+			conf_work_stealing.update(properties);
+			
+			properties.put("type", "VIRTUAL");
+			properties.remove("parallelism");
+			properties.remove("asyncMode");
+			properties.put("concurrency", 2);
+			properties.put("service.ranking", -20);
+			conf_virtual.update(properties);
+			
+			properties.put("type", "SINGLE");
+			properties.remove("concurrency");
+			properties.put("queueType", "ARRAY");
+			properties.put("queueCapacity", 1);
+			properties.put("rejection", "ABORT");
+			properties.put("service.ranking", -30);
+			conf_bounded.update(properties);
+			
+			properties.put("type", "FIXED");
+			properties.put("size", 2);
+			properties.remove("queueType");
+			properties.remove("queueCapacity");
+			properties.remove("rejection");
+			properties.put("fair", true);
+			properties.put("maxInFlight", 1);
+			properties.put("service.ranking", -40);
+			conf_fair.update(properties);
+			
+			properties.put("size", 2);
+			properties.remove("fair");
+			properties.remove("maxInFlight");
+			properties.put("id", "resizable");
+			properties.put("service.ranking", -50);
+			conf_resizable.update(properties);
+			
 			
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -114,6 +175,237 @@ public class TestExecutor extends TestCase {
 		context.ungetService(refs[0]);
 	}
 
+	public void test_work_stealing_executor() throws Exception {
+		ServiceReference<?> refs[] = context.getServiceReferences(Executor.class.getName(), "(type=WORK_STEALING)");
+		
+		assertNotSame("No work stealing executor registered", null, refs);
+		
+		e = (Executor) context.getService(refs[0]);
+
+		Runnable r = mock(Runnable.class);
+		
+		e.execute(longTask);
+		e.execute(r);
+
+		verify(r, timeout(1000)).run();
+		
+		context.ungetService(refs[0]);
+	}
+
+	public void test_virtual_executor_concurrency() throws Exception {
+		ServiceReference<?> refs[] = context.getServiceReferences(Executor.class.getName(), "(type=VIRTUAL)");
+		
+		assertNotSame("No virtual thread executor registered", null, refs);
+		
+		e = (Executor) context.getService(refs[0]);
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch done = new CountDownLatch(3);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		Runnable blocking = new Runnable() {
+
+			@Override
+			public void run() {
+				int n = running.incrementAndGet();
+				int max;
+				while (n > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, n))
+					;
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					// ends the task
+				} finally {
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}
+		};
+
+		for (int i = 0; i < 3; i++)
+			e.execute(blocking);
+
+		// Two tasks run at the same time, the third waits for one of them
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertEquals(2, running.get());
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, maxRunning.get());
+		
+		context.ungetService(refs[0]);
+	}
+
+	public void test_bounded_queue_rejects() throws Exception {
+		ServiceReference<?> refs[] = context.getServiceReferences(SharedExecutor.class.getName(), "(queueType=ARRAY)");
+		
+		assertNotSame("No bounded executor registered", null, refs);
+		
+		SharedExecutor se = (SharedExecutor) context.getService(refs[0]);
+
+		Runnable r = mock(Runnable.class);
+		
+		assertTrue(se.tryExecute(longTask));
+		Thread.sleep(200);
+		assertTrue(se.tryExecute(longTask));
+		assertFalse(se.tryExecute(r));
+		
+		try {
+			se.execute(r);
+			fail("Task should have been rejected");
+		} catch (RejectedExecutionException ree) {
+			// expected, the queue is full
+		}
+
+		verify(r, never()).run();
+		
+		context.ungetService(refs[0]);
+	}
+
+	public void test_fair_per_bundle_limit() throws Exception {
+		Bundle b1 = null;
+		Bundle[] bundles = context.getBundles();
+		for(Bundle b : bundles) {
+			if(b.getSymbolicName().equals("org.bndtools.rt.executor.test.b1")){
+				b1 = b;
+			}
+		}
+		assertNotNull(b1);
+		b1.start();
+		
+		ServiceReference<?> refs[] = context.getServiceReferences(Executor.class.getName(), "(fair=true)");
+		
+		assertNotSame("No fair executor registered", null, refs);
+		
+		e = (Executor) context.getService(refs[0]);
+		Executor eB1 = (Executor) b1.getBundleContext().getService(refs[0]);
+
+		Runnable r = mock(Runnable.class);
+		Runnable rB1 = mock(Runnable.class);
+		
+		e.execute(longTask);
+		e.execute(r);
+		eB1.execute(rB1);
+
+		// Only one task of this bundle may run at a time, which leaves the
+		// second thread of the pool to b1
+		verify(rB1, timeout(1000)).run();
+		verify(r, never()).run();
+		
+		b1.stop();
+		context.ungetService(refs[0]);
+	}
+
+	public void test_statistics_registered() throws Exception {
+		Runnable r = mock(Runnable.class);
+		e.execute(r);
+		verify(r, timeout(1000)).run();
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String pid = ObjectName.quote((String) ref.getProperty("service.pid"));
+		ObjectName pool = new ObjectName("org.bndtools.rt.executor:type=Pool,pid=" + pid);
+		
+		assertTrue(server.isRegistered(pool));
+		assertTrue((Long) server.getAttribute(pool, "Submitted") >= 1);
+		assertEquals(1, server.queryNames(new ObjectName("org.bndtools.rt.executor:type=Bundle,pid=" + pid + ",*"), null).size());
+	}
+
+	public void test_execute_all() throws Exception {
+		SharedExecutor se = (SharedExecutor) e;
+		
+		final CountDownLatch done = new CountDownLatch(1000);
+		List<Runnable> batch = new ArrayList<Runnable>();
+		for (int i = 0; i < 1000; i++) {
+			batch.add(new Runnable() {
+				
+				@Override
+				public void run() {
+					done.countDown();
+					if (done.getCount() % 100 == 0)
+						throw new IllegalStateException("does not stop the batch");
+				}
+			});
+		}
+		se.executeAll(batch);
+		
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+	}
+
+	public void test_scheduled_executor() throws Exception {
+		ServiceReference<?> sref = context.getServiceReference(ScheduledExecutorService.class.getName());
+		SharedExecutor se = (SharedExecutor) context.getService(sref);
+
+		assertEquals(Integer.valueOf(42), se.submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() {
+				return 42;
+			}
+		}).get(1, TimeUnit.SECONDS));
+
+		Runnable r = mock(Runnable.class);
+		se.schedule(r, 100, TimeUnit.MILLISECONDS);
+		verify(r, never()).run();
+		verify(r, timeout(1000)).run();
+
+		Runnable p = mock(Runnable.class);
+		ScheduledFuture<?> f = se.scheduleAtFixedRate(p, 0, 10, TimeUnit.MILLISECONDS);
+		verify(p, timeout(1000).atLeast(3)).run();
+		f.cancel(false);
+
+		assertEquals("ok", se.supplyAsync(new Supplier<String>() {
+
+			@Override
+			public String get() {
+				return "ok";
+			}
+		}).get(1, TimeUnit.SECONDS));
+
+		// Shutting down only affects the tasks of this bundle
+		se.shutdown();
+		assertTrue(se.awaitTermination(1, TimeUnit.SECONDS));
+		try {
+			se.execute(r);
+			fail("Task should have been rejected");
+		} catch (RejectedExecutionException ree) {
+			// expected, the executor has been shut down
+		}
+
+		context.ungetService(sref);
+	}
+
+	public void test_resize_keeps_tasks() throws Exception {
+		ServiceReference<?> refs[] = context.getServiceReferences(Executor.class.getName(), "(id=resizable)");
+		
+		assertNotSame("No resizable executor registered", null, refs);
+		
+		Executor re = (Executor) context.getService(refs[0]);
+
+		Runnable r = mock(Runnable.class);
+		
+		re.execute(longTask);
+		re.execute(longTask);
+		re.execute(r);
+		
+		verify(r, never()).run();
+		
+		// The third thread runs the queued task, the running ones are kept
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put("type", "FIXED");
+		properties.put("size", 3);
+		properties.put("id", "resizable");
+		properties.put("service.ranking", -50);
+		conf_resizable.update(properties);
+		
+		verify(r, timeout(1000)).run();
+		assertSame(re, context.getService(refs[0]));
+		
+		context.ungetService(refs[0]);
+		context.ungetService(refs[0]);
+	}
+
 	public void test_two_threads_executor() throws Exception {
 
 		assertNotNull(e);
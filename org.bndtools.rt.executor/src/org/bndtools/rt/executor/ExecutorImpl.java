@@ -4,9 +4,18 @@ import static java.lang.Math.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.management.*;
 
 import org.bndtools.rt.executor.ExecutorImpl.Config;
+import org.bndtools.rt.executor.ExecutorImpl.Config.QueueType;
 import org.bndtools.rt.executor.ExecutorImpl.Config.Type;
+import org.bndtools.service.executor.*;
+
+import org.osgi.framework.Bundle;
+import org.osgi.service.component.ComponentContext;
 
 import aQute.bnd.annotation.component.*;
 import aQute.bnd.annotation.metatype.*;
@@ -14,19 +23,31 @@ import aQute.bnd.annotation.metatype.*;
 /**
  * This bundle provides a java.util.concurrent.Executor service that can
  * be configured (for multiple instances) and is shared between all bundles.
+ * The same service is also registered as a ScheduledExecutorService. Shutting
+ * it down only affects the tasks of the calling bundle, never the shared pool.
  * 
  * @see <a
  *      href="http://docs.oracle.com/javase/6/docs/api/java/util/concurrent/Executor.html">java.util.concurrent.Executor</a>
  */
-@Component(designateFactory = Config.class, configurationPolicy = ConfigurationPolicy.require, servicefactory = true)
-public class ExecutorImpl implements Executor {
+@Component(designateFactory = Config.class, configurationPolicy = ConfigurationPolicy.require, servicefactory = true, provide = {
+		Executor.class, ExecutorService.class, ScheduledExecutorService.class, SharedExecutor.class
+})
+public class ExecutorImpl extends AbstractExecutorService implements SharedExecutor {
 
 	/**
 	 * Configuration parameters expected from the Config Admin
 	 */
 	interface Config {
 		enum Type {
-			FIXED, CACHED, SINGLE
+			FIXED, CACHED, SINGLE, WORK_STEALING, VIRTUAL
+		}
+
+		enum QueueType {
+			LINKED, ARRAY, SYNCHRONOUS
+		}
+
+		enum Rejection {
+			ABORT, CALLER_RUNS, BLOCK, DISCARD_OLDEST
 		}
 
 		int service_ranking();
@@ -38,143 +59,616 @@ public class ExecutorImpl implements Executor {
 		String id();
 
 		int size();
+
+		/**
+		 * Target parallelism of a WORK_STEALING pool (defaults to the number
+		 * of available processors)
+		 */
+		int parallelism();
+
+		/**
+		 * Local FIFO scheduling for the workers of a WORK_STEALING pool,
+		 * better suited to event-style tasks that are never joined
+		 */
+		boolean asyncMode();
+
+		/**
+		 * Maximum number of tasks of a VIRTUAL executor running at the same
+		 * time (unlimited if not set)
+		 */
+		int concurrency();
+
+		/**
+		 * Maximum number of tasks waiting in the queue of a FIXED or SINGLE
+		 * pool (unbounded if not set, except for an ARRAY queue which requires
+		 * it)
+		 */
+		int queueCapacity();
+
+		/**
+		 * Kind of queue of a FIXED or SINGLE pool (defaults to LINKED)
+		 */
+		QueueType queueType();
+
+		/**
+		 * What to do with a task submitted while the queue is full (defaults
+		 * to ABORT)
+		 */
+		Rejection rejection();
+
+		/**
+		 * Maximum time in milliseconds a BLOCK rejection waits for room in
+		 * the queue (waits forever if not set)
+		 */
+		long blockTimeout();
+
+		/**
+		 * Serve the bundles using the pool fairly instead of in submission
+		 * order
+		 */
+		boolean fair();
+
+		/**
+		 * Weights of the bundles in fair mode, as {@code <bsn>=<weight>}
+		 * entries (other bundles have a weight of 1)
+		 */
+		String[] weights();
+
+		/**
+		 * Maximum number of tasks of a bundle running at the same time in fair
+		 * mode, as {@code <bsn>=<max>} entries
+		 */
+		String[] limits();
+
+		/**
+		 * Maximum number of tasks of any bundle not listed in the limits
+		 * running at the same time in fair mode (unlimited if not set)
+		 */
+		int maxInFlight();
+
+		/**
+		 * Grow and shrink a FIXED pool from the observed queue wait time and
+		 * system load, starting from its size
+		 */
+		boolean adaptive();
+
+		/**
+		 * Minimum number of threads of an adaptive pool (defaults to 1)
+		 */
+		int minSize();
+
+		/**
+		 * Maximum number of threads of an adaptive pool (defaults to twice the
+		 * number of available processors, or to the size if larger)
+		 */
+		int maxSize();
+
+		/**
+		 * Mean queue wait time in milliseconds above which an adaptive pool
+		 * grows (defaults to 10)
+		 */
+		long targetWait();
 	}
 
 	/**
 	 * Internal representation of the underlying (shared) instances of the
-	 * thread pool, associated with the number of bundles using them
+	 * thread pool, associated with the number of bundles using them. A new
+	 * configuration is applied to the running pool: the pool is resized in
+	 * place if possible, and replaced otherwise, the previous pool being shut
+	 * down gracefully so that its queued and running tasks still complete.
 	 */
 	static class EsHolder {
-		ExecutorService	staticEs;
+		volatile ExecutorService	staticEs;
+		volatile Semaphore		permits;
+		FairDispatcher	dispatcher;
+		ScheduledThreadPoolExecutor	scheduler;
+		// Periodic task adapting the size of an adaptive pool
+		Future< ? >		sizer;
+		volatile Config	config;
+		final ExecutorStats	stats	= new ExecutorStats();
 		int				counter;
  		
 		EsHolder(Config config) {
 			counter = 0;
+			this.config = config;
+			staticEs = newPool(config);
+			if (config.fair())
+				dispatcher = new FairDispatcher(staticEs, slots(config));
+			stats.register("type=Pool,pid=" + ObjectName.quote(config.service_pid()));
+			startSizer(config);
+		}
+
+		static Type type(Config config) {
+			return config.type() == null ? Type.FIXED : config.type();
+		}
+
+		/**
+		 * @return the number of tasks the pool can run at the same time
+		 */
+		static int slots(Config config) {
+			switch (type(config)) {
+				case FIXED :
+					int size = max(config.size(), 2);
+					if (config.adaptive())
+						size = min(max(size, minSize(config)), maxSize(config));
+					return size;
+				case SINGLE :
+					return 1;
+				case WORK_STEALING :
+					return config.parallelism() > 0 ? config.parallelism() : Runtime.getRuntime()
+							.availableProcessors();
+				case VIRTUAL :
+					return config.concurrency() > 0 ? config.concurrency() : Integer.MAX_VALUE;
+				default :
+					return Integer.MAX_VALUE;
+			}
+		}
+
+		static int minSize(Config config) {
+			return max(config.minSize(), 1);
+		}
+
+		static int maxSize(Config config) {
+			int size = config.maxSize();
+			if (size <= 0)
+				size = max(config.size(), 2 * Runtime.getRuntime().availableProcessors());
+			return max(size, minSize(config));
+		}
+
+		/**
+		 * Attributes which cannot be changed without replacing the pool
+		 */
+		static String shape(Config config) {
+			return type(config) + "," + config.queueType() + "," + config.queueCapacity() + ","
+					+ config.rejection() + "," + config.blockTimeout() + "," + config.parallelism() + ","
+					+ config.asyncMode();
+		}
 
-			Type t = config.type();
-			if (t == null)
-				t = Config.Type.FIXED;
-			switch (t) {
+		static String sizing(Config config) {
+			return config.adaptive() + "," + minSize(config) + "," + maxSize(config) + "," + config.targetWait();
+		}
+
+		ExecutorService newPool(Config config) {
+			int threads = slots(config);
+			permits = null;
+			switch (type(config)) {
 				case FIXED :
-					staticEs = Executors.newFixedThreadPool(max(config.size(), 2));
-					break;
-				case CACHED :
-					staticEs = Executors.newCachedThreadPool();
-					break;
 				case SINGLE :
-					staticEs = Executors.newSingleThreadExecutor();
-					break;
+					return newThreadPool(threads, config);
+				case WORK_STEALING :
+					return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null,
+							config.asyncMode());
+				case VIRTUAL :
+					if (config.concurrency() > 0)
+						permits = new Semaphore(threads);
+					ExecutorService es = newVirtualThreadExecutor();
+					return es != null ? es : Executors.newCachedThreadPool();
+				default :
+					return Executors.newCachedThreadPool();
+			}
+		}
+
+		/**
+		 * Applies a new configuration to the running pool. Changing the fair
+		 * mode attributes only takes effect once the pool is created again.
+		 */
+		synchronized void update(Config config) {
+			Config old = this.config;
+			this.config = config;
+			if (!shape(old).equals(shape(config))) {
+				ExecutorService previous = staticEs;
+				staticEs = newPool(config);
+				if (dispatcher != null)
+					dispatcher.retarget(staticEs, slots(config));
+				previous.shutdown();
+			} else if (slots(old) != slots(config)) {
+				if (type(config) == Type.VIRTUAL) {
+					// Tasks already holding a permit release it to the
+					// previous semaphore
+					permits = config.concurrency() > 0 ? new Semaphore(slots(config)) : null;
+					if (dispatcher != null)
+						dispatcher.retarget(staticEs, slots(config));
+				} else
+					resize(slots(config));
+			}
+			if (!sizing(old).equals(sizing(config))) {
+				if (sizer != null)
+					sizer.cancel(false);
+				startSizer(config);
+			}
+		}
+
+		/**
+		 * Changes the number of threads of a FIXED pool. Shrinking the pool
+		 * does not interrupt running tasks: the threads in excess terminate
+		 * once idle.
+		 */
+		synchronized void resize(int threads) {
+			if (!(staticEs instanceof ThreadPoolExecutor) || type(config) != Type.FIXED)
+				return;
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) staticEs;
+			if (threads > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threads);
+				pool.setCorePoolSize(threads);
+			} else {
+				pool.setCorePoolSize(threads);
+				pool.setMaximumPoolSize(threads);
+			}
+			if (dispatcher != null)
+				dispatcher.retarget(pool, threads);
+		}
+
+		void startSizer(Config config) {
+			sizer = null;
+			if (config.adaptive() && type(config) == Type.FIXED) {
+				long target = config.targetWait() > 0 ? config.targetWait() : 10;
+				sizer = getScheduler().scheduleWithFixedDelay(
+						new PoolSizer(this, minSize(config), maxSize(config), TimeUnit.MILLISECONDS.toNanos(target)),
+						1, 1, TimeUnit.SECONDS);
+			}
+		}
+
+		/**
+		 * Creates a pool with a fixed number of threads, whose queue and
+		 * rejection policy are set by the configuration.
+		 */
+		static ExecutorService newThreadPool(int threads, Config config) {
+			return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, newQueue(config),
+					new RejectionHandler(config.rejection(), config.blockTimeout()));
+		}
+
+		static BlockingQueue<Runnable> newQueue(Config config) {
+			int capacity = config.queueCapacity();
+			QueueType q = config.queueType();
+			if (q == null)
+				q = QueueType.LINKED;
+			switch (q) {
+				case ARRAY :
+					if (capacity <= 0)
+						throw new IllegalArgumentException("An ARRAY queue requires a positive queueCapacity");
+					return new ArrayBlockingQueue<Runnable>(capacity);
+				case SYNCHRONOUS :
+					return new SynchronousQueue<Runnable>();
+				default :
+					if (capacity <= 0)
+						return new LinkedBlockingQueue<Runnable>();
+					return new LinkedBlockingQueue<Runnable>(capacity);
+			}
+		}
+
+		/**
+		 * Creates an executor starting a new virtual thread for each task. The
+		 * API is only looked up at runtime, so that this bundle still runs on
+		 * JVMs without virtual threads.
+		 * 
+		 * @return the executor, or null if the JVM does not support virtual
+		 *         threads
+		 */
+		static ExecutorService newVirtualThreadExecutor() {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+						.getMethod("factory").invoke(builder);
+				return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+						.invoke(null, factory);
+			}
+			catch (Exception e) {
+				return null;
 			}
 		}
 
-		ExecutorService getEs() {
+		void get() {
 			counter++;
-			return staticEs;
+		}
+
+		/**
+		 * Returns the thread triggering the delayed and periodic tasks of this
+		 * pool, which only hands them over to the pool when they are due.
+		 */
+		synchronized ScheduledExecutorService getScheduler() {
+			if (scheduler == null) {
+				scheduler = new ScheduledThreadPoolExecutor(1);
+				scheduler.setRemoveOnCancelPolicy(true);
+			}
+			return scheduler;
 		}
 
 		void unget() {
 			counter--;
 			if (counter == 0) {
 				staticEs.shutdownNow();
+				synchronized (this) {
+					if (scheduler != null)
+						scheduler.shutdownNow();
+				}
+				stats.unregister();
 			}
 		}
 	}
 
 	/**
-	 *  Wrapper around the runnable passed by the using bundle
-	 *  This wrapper gets a future object corresponding to its task
-	 *  once it is created, which allows it:
-	 *    - to add it to a per instance list of futures (in order
-	 *    	to be able to cancel tasks pertaining to an exiting bundle
-	 *    - to remove this future from the list of futures once the task
-	 *    	is finished (and does not have to be cancelled anymore)
-	 *
+	 * Wrapper around the task passed by the using bundle. The wrapper is
+	 * its own future: it is added to the per instance set of futures before
+	 * being handed to the pool (in order to be able to cancel tasks pertaining
+	 * to an exiting bundle), and removes itself from this set once the task is
+	 * finished or cancelled. The set is a concurrent one, so that neither
+	 * submitting nor completing a task takes a lock or scans a list. If the
+	 * pool limits the number of concurrently running tasks, the wrapper waits
+	 * for a permit before running the task. The time spent waiting and
+	 * running is recorded in the statistics of the pool and of the bundle.
 	 */
-	class Wrapper implements Runnable {
-
-		Runnable	runnable;
-		Future< ? >	future	= null;
-
-		boolean		done	= false;
+	class Wrapper<V> extends FutureTask<V> {
+		// Time at which the task was handed to the pool
+		long			submitted	= System.nanoTime();
+		// QUEUED while handed to the pool, then RUNNING once claimed by the
+		// first of run() and cancel(). A scheduled task is IDLE until its
+		// trigger time.
+		volatile int	started;
+
+		Wrapper(Runnable command, V result) {
+			super(command, result);
+		}
 
-		Wrapper( Runnable command) {
-			runnable = command;
+		Wrapper(Callable<V> callable) {
+			super(callable);
 		}
 
-		void setFuture(Future< ? > f) {
-			this.future = f;
-			synchronized (futures) {
-				if (!done) {
-					futures.add(f);
-				}
-			}
+		ExecutorImpl owner() {
+			return ExecutorImpl.this;
 		}
 
 		@Override
 		public void run() {
+			// The pool may be reconfigured while the task runs
+			Semaphore permits = holder.permits;
+			if (permits != null) {
+				try {
+					permits.acquire();
+				}
+				catch (InterruptedException e) {
+					cancel(false);
+					return;
+				}
+			}
 			try {
-				runnable.run();
+				if (STARTED.compareAndSet(this, QUEUED, RUNNING)) {
+					long start = System.nanoTime();
+					poolStats.started(start - submitted);
+					stats.started(start - submitted);
+					try {
+						runTask();
+					}
+					finally {
+						long duration = System.nanoTime() - start;
+						boolean interrupted = isCancelled();
+						poolStats.finished(duration, interrupted);
+						stats.finished(duration, interrupted);
+					}
+				}
 			}
 			finally {
+				if (permits != null)
+					permits.release();
+			}
+		}
+
+		void runTask() {
+			super.run();
+		}
+
+		@Override
+		protected void done() {
+			futures.remove(this);
+			if (isCancelled()) {
+				boolean queued = STARTED.compareAndSet(this, QUEUED, RUNNING);
+				poolStats.cancelled(queued);
+				stats.cancelled(queued);
+			}
+			if (shutdown && futures.isEmpty()) {
 				synchronized (futures) {
-					if (future != null) {
-						futures.remove(future);
-					}
-					done = true;
+					futures.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delayed or periodic task. The scheduler thread of the pool only triggers
+	 * it, and the task itself runs in the pool like any other task. A periodic
+	 * task stays in the set of futures of the bundle until it is cancelled.
+	 */
+	class ScheduledTask<V> extends Wrapper<V> implements RunnableScheduledFuture<V> {
+		// Period in nanoseconds: positive for a fixed rate, negative for a
+		// fixed delay, 0 for a one-shot task
+		final long			period;
+		// Next trigger time, in System.nanoTime() units
+		volatile long		time;
+		volatile Future< ? >	trigger;
+
+		ScheduledTask(Runnable command, V result, long time, long period) {
+			super(command, result);
+			this.time = time;
+			this.period = period;
+			started = IDLE;
+		}
+
+		ScheduledTask(Callable<V> callable, long time) {
+			super(callable);
+			this.time = time;
+			this.period = 0;
+			started = IDLE;
+		}
+
+		void arm() {
+			trigger = holder.getScheduler().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					handOff();
 				}
+			}, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
 
+		void handOff() {
+			if (isDone())
+				return;
+			submitted = System.nanoTime();
+			started = QUEUED;
+			try {
+				enqueue(this);
+			}
+			catch (RejectedExecutionException e) {
+				started = IDLE;
+				cancel(false);
 			}
 		}
+
+		@Override
+		void runTask() {
+			if (!isPeriodic()) {
+				super.runTask();
+				return;
+			}
+			if (runAndReset()) {
+				started = IDLE;
+				time = period > 0 ? time + period : System.nanoTime() - period;
+				try {
+					arm();
+				}
+				catch (RejectedExecutionException e) {
+					cancel(false);
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future< ? > t = trigger;
+			if (cancelled && t != null)
+				t.cancel(false);
+			return cancelled;
+		}
+
+		@Override
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long d = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+			return d < 0 ? -1 : d > 0 ? 1 : 0;
+		}
 	}
 
+	static final int								QUEUED	= 0;
+	static final int								RUNNING	= 1;
+	static final int								IDLE	= 2;
+	@SuppressWarnings("rawtypes")
+	static final AtomicIntegerFieldUpdater<Wrapper>	STARTED	= AtomicIntegerFieldUpdater.newUpdater(Wrapper.class,
+																		"started");
+
 
 	static ConcurrentHashMap<String,EsHolder> holders = new ConcurrentHashMap<String,ExecutorImpl.EsHolder>();
-	// List of tasks submitted by one bundle
-	List<Future< ? >> futures = new ArrayList<Future< ? >>();
+	// Tasks submitted by one bundle and not finished yet
+	final Set<Future< ? >> futures = Collections.newSetFromMap(new ConcurrentHashMap<Future< ? >,Boolean>());
 	String servicePid;
-	// Executor implementation used by the bundle
-	ExecutorService	es;
+	// Shared pool used by the bundle
+	EsHolder		holder;
+	// Fair-share dispatcher of the pool and sub-queue of the bundle, if any
+	FairDispatcher	dispatcher;
+	FairDispatcher.Lane	lane;
+	// Statistics of the pool, and of the tasks submitted by the bundle
+	ExecutorStats	poolStats;
+	final ExecutorStats	stats	= new ExecutorStats();
+	// Set when the bundle shuts down its view of the executor
+	volatile boolean	shutdown;
 
 	/**
 	 * Creates a new instance of the underlying implementation of the executor
 	 * service (depending on the configuration parameters) if needed, or returns
-	 * a pre-existing instance of this service, shared by all bundles.
+	 * a pre-existing instance of this service, shared by all bundles. In fair
+	 * mode, a sub-queue is opened for the bundle using this instance.
 	 * 
-	 * @param properties
-	 *            Configuration parameters, passed by the framework
+	 * @param context
+	 *            Component context, passed by the framework
 	 */
 	@Activate
-	void activate(Map<String,Object> properties) {
+	void activate(ComponentContext context) {
+		activate(context.getProperties(), context.getUsingBundle());
+	}
+
+	void activate(Dictionary< ? , ? > properties, Bundle using) {
 
 		Config config = Configurable.createConfigurable(Config.class, properties);
 		servicePid = config.service_pid();
 		
 		synchronized(holders) {
-			holders.putIfAbsent(servicePid, new EsHolder(config));
-			es = holders.get(servicePid).getEs();
+			holder = holders.get(servicePid);
+			if (holder == null) {
+				holder = new EsHolder(config);
+				holders.put(servicePid, holder);
+			}
+			holder.get();
+			dispatcher = holder.dispatcher;
+			poolStats = holder.stats;
 		}
 
+		if (using != null)
+			stats.register("type=Bundle,pid=" + ObjectName.quote(servicePid) + ",name="
+					+ ObjectName.quote(using.getSymbolicName()) + ",id=" + using.getBundleId());
+
+		if (dispatcher != null) {
+			String bsn = using == null ? null : using.getSymbolicName();
+			lane = dispatcher.open(FairDispatcher.lookup(config.weights(), bsn, 1),
+					FairDispatcher.lookup(config.limits(), bsn, config.maxInFlight()), config.queueCapacity());
+		}
+	}
+
+	/**
+	 * Applies a new configuration to the shared pool, without cancelling
+	 * any task.
+	 * 
+	 * @param context
+	 *            Component context, passed by the framework
+	 */
+	@Modified
+	void modified(ComponentContext context) {
+		modified(context.getProperties());
+	}
+
+	void modified(Dictionary< ? , ? > properties) {
+		Config config = Configurable.createConfigurable(Config.class, properties);
+		synchronized (holders) {
+			holder.update(config);
+		}
 	}
 
 	/**
 	 * Cancels the tasks submitted by the exiting bundle, shutting down the
 	 * executor service if no more bundle is using it
-	 * 
-	 * @param properties
-	 *            Configuration parameters, passed by the framework
 	 */
 	@Deactivate
 	void deactivate() {
 
-		
-		synchronized (futures) {
-			for (Future< ? > f : futures) {
-				f.cancel(true);
-			}
+		shutdown = true;
+
+		if (lane != null)
+			dispatcher.close(lane);
+
+		for (Future< ? > f : futures) {
+			f.cancel(true);
 		}
 
+		stats.unregister();
+
 		synchronized (holders) {
-			EsHolder holder = holders.get(servicePid);
 			holder.unget();
 			if (holder.counter == 0) {
 				holders.remove(servicePid);
@@ -185,9 +679,274 @@ public class ExecutorImpl implements Executor {
 
 	@Override
 	public void execute(Runnable command) {
-		Wrapper w = new Wrapper(command);
-		Future< ? > f = es.submit(w);
-		w.setFuture(f);
+		if (shutdown)
+			throw new RejectedExecutionException("Executor has been shut down");
+
+		// Tasks created by submit() and invokeAll() are already wrapped
+		Wrapper< ? > w;
+		if (command instanceof Wrapper && ((Wrapper< ? >) command).owner() == this)
+			w = (Wrapper< ? >) command;
+		else
+			w = new Wrapper<Void>(command, null);
+		enqueue(w);
+	}
+
+	void enqueue(Wrapper< ? > w) {
+		futures.add(w);
+		poolStats.submitted();
+		stats.submitted();
+		try {
+			if (lane != null)
+				dispatcher.submit(lane, w);
+			else {
+				ExecutorService es = holder.staticEs;
+				try {
+					es.execute(w);
+				}
+				catch (RejectedExecutionException e) {
+					// The pool may have been replaced in the meantime
+					if (es == holder.staticEs)
+						throw e;
+					holder.staticEs.execute(w);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			futures.remove(w);
+			poolStats.rejected();
+			stats.rejected();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a slice of a batch in a single task, stopping as soon as the
+	 * task is cancelled.
+	 */
+	static class Chunk implements Runnable {
+		final Runnable[]	commands;
+		final int			from;
+		final int			to;
+		Future< ? >			task;
+
+		Chunk(Runnable[] commands, int from, int to) {
+			this.commands = commands;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+			for (int i = from; i < to && !task.isCancelled(); i++) {
+				try {
+					commands[i].run();
+				}
+				catch (RuntimeException e) {
+					// like execute(), a failing command does not affect the
+					// others
+				}
+			}
+		}
+	}
+
+	@Override
+	public void executeAll(Collection< ? extends Runnable> commands) {
+		if (shutdown)
+			throw new RejectedExecutionException("Executor has been shut down");
+
+		Runnable[] all = commands.toArray(new Runnable[commands.size()]);
+		if (all.length == 0)
+			return;
+
+		// One chunk per thread that can run it, so that the batch is spread
+		// over the pool without a task per command
+		int chunks = min(all.length, min(EsHolder.slots(holder.config), Runtime.getRuntime().availableProcessors()));
+		int size = (all.length + chunks - 1) / chunks;
+		for (int from = 0; from < all.length; from += size) {
+			Chunk chunk = new Chunk(all, from, min(from + size, all.length));
+			Wrapper<Void> w = new Wrapper<Void>(chunk, null);
+			chunk.task = w;
+			enqueue(w);
+		}
+	}
+
+	@Override
+	public boolean tryExecute(Runnable command) {
+		RejectionHandler.TRYING.set(Boolean.TRUE);
+		try {
+			execute(command);
+			return true;
+		}
+		catch (RejectedExecutionException e) {
+			return false;
+		}
+		finally {
+			RejectionHandler.TRYING.remove();
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new Wrapper<T>(runnable, value);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new Wrapper<T>(callable);
+	}
+
+	@Override
+	public ScheduledFuture< ? > schedule(Runnable command, long delay, TimeUnit unit) {
+		return schedule(new ScheduledTask<Void>(command, null, triggerTime(delay, unit), 0));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return schedule(new ScheduledTask<V>(callable, triggerTime(delay, unit)));
+	}
+
+	@Override
+	public ScheduledFuture< ? > scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Period must be positive");
+		return schedule(new ScheduledTask<Void>(command, null, triggerTime(initialDelay, unit), unit.toNanos(period)));
+	}
+
+	@Override
+	public ScheduledFuture< ? > scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive");
+		return schedule(new ScheduledTask<Void>(command, null, triggerTime(initialDelay, unit), -unit.toNanos(delay)));
+	}
+
+	private <V> ScheduledFuture<V> schedule(ScheduledTask<V> task) {
+		if (shutdown)
+			throw new RejectedExecutionException("Executor has been shut down");
+		futures.add(task);
+		try {
+			task.arm();
+		}
+		catch (RuntimeException e) {
+			futures.remove(task);
+			throw e;
+		}
+		return task;
+	}
+
+	private static long triggerTime(long delay, TimeUnit unit) {
+		return System.nanoTime() + unit.toNanos(max(delay, 0));
+	}
+
+	@Override
+	public <U> CompletableFuture<U> supplyAsync(final Supplier<U> supplier) {
+		final CompletableFuture<U> result = new CompletableFuture<U>();
+		final Wrapper<U> w = new Wrapper<U>(new Callable<U>() {
+
+			@Override
+			public U call() throws Exception {
+				return supplier.get();
+			}
+		}) {
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					result.complete(get());
+				}
+				catch (ExecutionException e) {
+					result.completeExceptionally(e.getCause());
+				}
+				catch (CancellationException e) {
+					result.cancel(false);
+				}
+				catch (InterruptedException e) {
+					result.completeExceptionally(e);
+				}
+			}
+		};
+		result.whenComplete(new BiConsumer<U,Throwable>() {
+
+			@Override
+			public void accept(U value, Throwable failure) {
+				if (result.isCancelled())
+					w.cancel(true);
+			}
+		});
+		execute(w);
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Void> runAsync(final Runnable command) {
+		return supplyAsync(new Supplier<Void>() {
+
+			@Override
+			public Void get() {
+				command.run();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting tasks from the bundle using this instance, and cancels
+	 * its periodic tasks. The shared pool is left running.
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		for (Future< ? > f : futures) {
+			if (f instanceof ScheduledTask && ((ScheduledTask< ? >) f).isPeriodic())
+				f.cancel(false);
+		}
+		synchronized (futures) {
+			futures.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops accepting tasks from the bundle using this instance, and cancels
+	 * all its tasks. The shared pool is left running.
+	 * 
+	 * @return the tasks of the bundle that never started
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> pending = new ArrayList<Runnable>();
+		for (Future< ? > f : futures) {
+			Wrapper< ? > w = (Wrapper< ? >) f;
+			// Queued in the pool, or waiting for its trigger time
+			boolean waiting = w.started != RUNNING;
+			if (w.cancel(true) && waiting)
+				pending.add(w);
+		}
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && futures.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (futures) {
+			while (!isTerminated()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(futures, remaining);
+			}
+		}
+		return true;
 	}
 
 }
@@ -0,0 +1,136 @@
+package org.bndtools.rt.executor;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import org.bndtools.rt.utils.stats.*;
+
+/**
+ * Statistics of an executor. The counters are striped, so that recording
+ * from the submitting and running threads neither contends nor allocates.
+ * The statistics can be registered as an MBean in the platform MBean server.
+ */
+class ExecutorStats implements ExecutorStatsMXBean {
+	static final String	DOMAIN		= "org.bndtools.rt.executor";
+
+	final LongAdder		queued		= new LongAdder();
+	final LongAdder		active		= new LongAdder();
+	final LongAdder		submitted	= new LongAdder();
+	final LongAdder		completed	= new LongAdder();
+	final LongAdder		rejected	= new LongAdder();
+	final LongAdder		cancelled	= new LongAdder();
+	final Histogram		waitTime	= new Histogram();
+	final Histogram		runTime		= new Histogram();
+	ObjectName			name;
+
+	void submitted() {
+		submitted.increment();
+		queued.increment();
+	}
+
+	void rejected() {
+		rejected.increment();
+		queued.decrement();
+	}
+
+	void started(long waitNanos) {
+		queued.decrement();
+		active.increment();
+		waitTime.record(waitNanos);
+	}
+
+	/**
+	 * @param interrupted
+	 *            whether the task was cancelled while running
+	 */
+	void finished(long runNanos, boolean interrupted) {
+		active.decrement();
+		if (!interrupted)
+			completed.increment();
+		runTime.record(runNanos);
+	}
+
+	/**
+	 * @param queued
+	 *            whether the task was cancelled while waiting in the queue,
+	 *            rather than while running or waiting for its trigger time
+	 */
+	void cancelled(boolean queued) {
+		if (queued)
+			this.queued.decrement();
+		cancelled.increment();
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return queued.sum();
+	}
+
+	@Override
+	public long getActiveTasks() {
+		return active.sum();
+	}
+
+	@Override
+	public long getSubmitted() {
+		return submitted.sum();
+	}
+
+	@Override
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getCancelled() {
+		return cancelled.sum();
+	}
+
+	@Override
+	public Histogram.Snapshot getWaitTime() {
+		return waitTime.snapshot();
+	}
+
+	@Override
+	public Histogram.Snapshot getRunTime() {
+		return runTime.snapshot();
+	}
+
+	/**
+	 * Registers these statistics in the platform MBean server. The statistics
+	 * are still recorded if the registration fails.
+	 * 
+	 * @param properties
+	 *            The key properties of the object name, e.g.
+	 *            {@code type=Pool,pid=...}
+	 */
+	void register(String properties) {
+		try {
+			ObjectName on = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			name = on;
+		}
+		catch (Exception e) {
+			// no MBean server available or name already taken
+		}
+	}
+
+	void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (Exception e) {
+			// already unregistered
+		}
+		name = null;
+	}
+}
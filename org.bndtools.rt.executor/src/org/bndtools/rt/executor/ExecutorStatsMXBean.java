@@ -0,0 +1,39 @@
+package org.bndtools.rt.executor;
+
+import org.bndtools.rt.utils.stats.*;
+
+/**
+ * Management interface of the statistics of an executor, either for a whole
+ * pool or for the tasks a bundle submitted to this pool.
+ */
+public interface ExecutorStatsMXBean {
+
+	/**
+	 * @return the number of tasks accepted and not started yet
+	 */
+	long getQueueDepth();
+
+	/**
+	 * @return the number of tasks currently running
+	 */
+	long getActiveTasks();
+
+	long getSubmitted();
+
+	long getCompleted();
+
+	long getRejected();
+
+	long getCancelled();
+
+	/**
+	 * @return the time spent by the tasks between their submission and their
+	 *         start
+	 */
+	Histogram.Snapshot getWaitTime();
+
+	/**
+	 * @return the time spent by the tasks running
+	 */
+	Histogram.Snapshot getRunTime();
+}
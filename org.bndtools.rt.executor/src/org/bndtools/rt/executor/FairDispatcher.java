@@ -0,0 +1,219 @@
+package org.bndtools.rt.executor;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fair-share dispatch layer on top of a shared pool. Every bundle using the
+ * pool gets its own sub-queue (a {@link Lane}), and tasks are only handed to
+ * the pool when it has an idle thread. The lanes holding tasks are served in
+ * round-robin order, each lane being given as many consecutive tasks as its
+ * weight, so that a bundle submitting many tasks cannot starve the others. A
+ * lane may also limit the number of its tasks running at the same time.
+ */
+class FairDispatcher {
+
+	/**
+	 * Per bundle sub-queue. All the fields are guarded by the dispatcher.
+	 */
+	static class Lane {
+		final Queue<Runnable>	tasks	= new ArrayDeque<Runnable>();
+		final int				weight;
+		final int				maxInFlight;
+		final int				capacity;
+		int						inFlight;
+		int						served;
+		boolean					ready;
+		boolean					closed;
+
+		Lane(int weight, int maxInFlight, int capacity) {
+			this.weight = Math.max(weight, 1);
+			this.maxInFlight = maxInFlight;
+			this.capacity = capacity;
+		}
+
+		boolean runnable() {
+			return !closed && !tasks.isEmpty() && (maxInFlight <= 0 || inFlight < maxInFlight);
+		}
+	}
+
+	/**
+	 * Runs a task on behalf of a lane, and dispatches the next task once it
+	 * is finished.
+	 */
+	class Dispatched implements Runnable {
+		final Lane		lane;
+		final Runnable	task;
+
+		Dispatched(Lane lane, Runnable task) {
+			this.lane = lane;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			}
+			finally {
+				finished(lane);
+				dispatch();
+			}
+		}
+
+		/**
+		 * Called instead of {@link #run()} when the pool discards the task
+		 * from its queue: the task is cancelled and the lane released. The
+		 * next task is dispatched once a running one finishes, as the pool
+		 * is full.
+		 */
+		void discard() {
+			if (task instanceof Future)
+				((Future< ? >) task).cancel(false);
+			finished(lane);
+		}
+	}
+
+	// Guarded by the dispatcher, as the pool may be resized or replaced
+	Executor			es;
+	int					slots;
+	final Deque<Lane>	ready	= new ArrayDeque<Lane>();
+	int					running;
+
+	/**
+	 * @param es
+	 *            The shared pool
+	 * @param slots
+	 *            The maximum number of tasks handed to the pool at the same
+	 *            time, normally its number of threads
+	 */
+	FairDispatcher(Executor es, int slots) {
+		this.es = es;
+		this.slots = slots;
+	}
+
+	/**
+	 * Hands the next tasks to another pool, or to the same pool after it was
+	 * resized.
+	 */
+	void retarget(Executor es, int slots) {
+		synchronized (this) {
+			this.es = es;
+			this.slots = slots;
+		}
+		dispatch();
+	}
+
+	Lane open(int weight, int maxInFlight, int capacity) {
+		return new Lane(weight, maxInFlight, capacity);
+	}
+
+	/**
+	 * Discards the tasks still waiting in the lane of an exiting bundle.
+	 */
+	synchronized void close(Lane lane) {
+		lane.closed = true;
+		lane.tasks.clear();
+		ready.remove(lane);
+		lane.ready = false;
+	}
+
+	void submit(Lane lane, Runnable task) {
+		synchronized (this) {
+			if (lane.closed)
+				throw new RejectedExecutionException("Executor is not available anymore");
+			if (lane.capacity > 0 && lane.tasks.size() >= lane.capacity)
+				throw new RejectedExecutionException("Queue is full");
+			lane.tasks.add(task);
+			schedule(lane);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Hands tasks to the pool while it has idle threads. The pool is called
+	 * outside of the lock, so that a saturated pool never blocks the
+	 * dispatcher.
+	 */
+	void dispatch() {
+		while (true) {
+			Lane lane;
+			Runnable task;
+			Executor target;
+			synchronized (this) {
+				if (running >= slots || ready.isEmpty())
+					return;
+
+				lane = ready.poll();
+				lane.ready = false;
+				task = lane.tasks.poll();
+				lane.inFlight++;
+				running++;
+
+				if (++lane.served < lane.weight && lane.runnable()) {
+					// The lane keeps its turn until it used up its weight
+					ready.addFirst(lane);
+					lane.ready = true;
+				} else {
+					lane.served = 0;
+					schedule(lane);
+				}
+				target = es;
+			}
+			try {
+				execute(target, new Dispatched(lane, task));
+			}
+			catch (RejectedExecutionException e) {
+				finished(lane);
+				if (task instanceof Future)
+					((Future< ? >) task).cancel(false);
+				return;
+			}
+		}
+	}
+
+	private void execute(Executor target, Runnable task) {
+		try {
+			target.execute(task);
+		}
+		catch (RejectedExecutionException e) {
+			// The pool may have been replaced in the meantime
+			Executor current;
+			synchronized (this) {
+				current = es;
+			}
+			if (current == target)
+				throw e;
+			current.execute(task);
+		}
+	}
+
+	synchronized void finished(Lane lane) {
+		running--;
+		lane.inFlight--;
+		schedule(lane);
+	}
+
+	private void schedule(Lane lane) {
+		if (!lane.ready && lane.runnable()) {
+			ready.add(lane);
+			lane.ready = true;
+		}
+	}
+
+	/**
+	 * Looks up the value associated to a bundle in a list of
+	 * {@code <bsn>=<value>} entries.
+	 */
+	static int lookup(String[] entries, String bsn, int deflt) {
+		if (entries == null || bsn == null)
+			return deflt;
+
+		for (String entry : entries) {
+			int n = entry.indexOf('=');
+			if (n > 0 && entry.substring(0, n).trim().equals(bsn))
+				return Integer.parseInt(entry.substring(n + 1).trim());
+		}
+		return deflt;
+	}
+}
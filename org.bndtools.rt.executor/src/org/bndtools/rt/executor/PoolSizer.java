@@ -0,0 +1,66 @@
+package org.bndtools.rt.executor;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+
+import org.bndtools.rt.executor.ExecutorImpl.EsHolder;
+import org.bndtools.rt.utils.stats.*;
+
+/**
+ * Adapts the number of threads of an adaptive pool to the load. Run
+ * periodically, it compares the mean time tasks waited in the queue since the
+ * last run with a target: the pool grows by a quarter while tasks wait longer
+ * than the target and the processors are not saturated, and shrinks by one
+ * thread while tasks hardly wait and some threads are idle.
+ */
+class PoolSizer implements Runnable {
+	final EsHolder					holder;
+	final int						min;
+	final int						max;
+	final long						targetWait;
+	final OperatingSystemMXBean		os	= ManagementFactory.getOperatingSystemMXBean();
+	long							count;
+	long							sum;
+
+	/**
+	 * @param targetWait
+	 *            Mean wait time in nanoseconds above which the pool grows
+	 */
+	PoolSizer(EsHolder holder, int min, int max, long targetWait) {
+		this.holder = holder;
+		this.min = min;
+		this.max = max;
+		this.targetWait = targetWait;
+	}
+
+	@Override
+	public void run() {
+		if (!(holder.staticEs instanceof ThreadPoolExecutor))
+			return;
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) holder.staticEs;
+
+		Histogram waitTime = holder.stats.waitTime;
+		long c = waitTime.count();
+		long s = waitTime.sum();
+		long wait = c > count ? (s - sum) / (c - count) : 0;
+		count = c;
+		sum = s;
+
+		int size = pool.getCorePoolSize();
+		if (wait > targetWait && holder.stats.getQueueDepth() > 0) {
+			if (size < max && !saturated())
+				holder.resize(Math.min(max, size + Math.max(1, size / 4)));
+		} else if (wait < targetWait / 4 && pool.getActiveCount() < size && size > min) {
+			holder.resize(size - 1);
+		}
+	}
+
+	/**
+	 * @return true if the system load is above the number of processors.
+	 *         Adding threads would then only make the tasks compete for them.
+	 */
+	boolean saturated() {
+		double load = os.getSystemLoadAverage();
+		return load >= os.getAvailableProcessors();
+	}
+}
@@ -0,0 +1,72 @@
+package org.bndtools.rt.executor;
+
+import java.util.concurrent.*;
+
+import org.bndtools.rt.executor.ExecutorImpl.Config.Rejection;
+
+/**
+ * Applies the configured rejection policy when the queue of a bounded thread
+ * pool is full. Tasks submitted through
+ * {@link ExecutorImpl#tryExecute(Runnable)} are always rejected with an
+ * exception, so that the caller never blocks nor runs the task itself.
+ */
+class RejectionHandler implements RejectedExecutionHandler {
+
+	/**
+	 * Set while the current thread submits a task through tryExecute
+	 */
+	static final ThreadLocal<Boolean>	TRYING	= new ThreadLocal<Boolean>();
+
+	final Rejection						policy;
+	final long							timeout;
+
+	RejectionHandler(Rejection policy, long timeout) {
+		this.policy = policy == null ? Rejection.ABORT : policy;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+		if (executor.isShutdown())
+			throw new RejectedExecutionException("Executor has been shut down");
+		if (TRYING.get() != null)
+			throw new RejectedExecutionException("Queue is full");
+
+		switch (policy) {
+			case CALLER_RUNS :
+				r.run();
+				break;
+
+			case BLOCK :
+				try {
+					if (timeout <= 0)
+						executor.getQueue().put(r);
+					else if (!executor.getQueue().offer(r, timeout, TimeUnit.MILLISECONDS))
+						throw new RejectedExecutionException("Queue is still full after " + timeout + " ms");
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(e);
+				}
+				break;
+
+			case DISCARD_OLDEST :
+				// Cancel the discarded task so that it is not tracked anymore
+				// by the bundle which submitted it, nor holds a slot of its
+				// lane in fair mode
+				Runnable oldest = executor.getQueue().poll();
+				if (oldest == null)
+					// Nothing to discard, e.g. with a SYNCHRONOUS queue
+					throw new RejectedExecutionException("Queue is full");
+				if (oldest instanceof FairDispatcher.Dispatched)
+					((FairDispatcher.Dispatched) oldest).discard();
+				else if (oldest instanceof Future)
+					((Future< ? >) oldest).cancel(false);
+				executor.execute(r);
+				break;
+
+			default :
+				throw new RejectedExecutionException("Queue is full");
+		}
+	}
+}
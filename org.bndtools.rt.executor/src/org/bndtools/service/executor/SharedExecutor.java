@@ -0,0 +1,72 @@
+package org.bndtools.service.executor;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * An {@link Executor} backed by a thread pool shared between all the bundles
+ * in the framework. Tasks submitted by a bundle are cancelled when this bundle
+ * ungets the service. Shutting the service down only stops the tasks of the
+ * calling bundle; the shared pool is left running for the other bundles.
+ */
+@ProviderType
+public interface SharedExecutor extends ScheduledExecutorService {
+
+	/**
+	 * Executes the given command at some time in the future, unless the
+	 * underlying pool cannot accept it right away. Unlike
+	 * {@link #execute(Runnable)}, this method never blocks, never runs the
+	 * command in the calling thread and never throws a
+	 * {@link RejectedExecutionException}, whatever the rejection policy of the
+	 * pool is. Producers can use it to shed load when the pool is saturated.
+	 * 
+	 * @param command
+	 *            The task to execute
+	 * @return true if the task was accepted, false if it was rejected
+	 */
+	boolean tryExecute(Runnable command);
+
+	/**
+	 * Executes the given commands at some time in the future. The commands
+	 * are split into a few chunks, each of them being a single task run by
+	 * one thread of the pool, which costs much less than executing the
+	 * commands one by one when they are small. The commands of a chunk run
+	 * in order, and the commands not run yet are skipped when the bundle
+	 * ungets the service or shuts it down with {@link #shutdownNow()}. A
+	 * command throwing an exception does not prevent the next ones from
+	 * running.
+	 * 
+	 * @param commands
+	 *            The tasks to execute
+	 * @throws RejectedExecutionException
+	 *             if a chunk cannot be accepted, in which case the commands of
+	 *             the next chunks are not executed either
+	 */
+	void executeAll(Collection< ? extends Runnable> commands);
+
+	/**
+	 * Runs the given supplier in the shared pool. Cancelling the returned
+	 * future cancels the task, and the future is cancelled when the task is.
+	 * 
+	 * @param supplier
+	 *            The task to execute
+	 * @return a future completed with the value returned by the supplier
+	 */
+	<U> CompletableFuture<U> supplyAsync(Supplier<U> supplier);
+
+	/**
+	 * Runs the given command in the shared pool.
+	 * 
+	 * @param command
+	 *            The task to execute
+	 * @return a future completed once the command has run
+	 * @see #supplyAsync(Supplier)
+	 */
+	CompletableFuture<Void> runAsync(Runnable command);
+}
@@ -0,0 +1,98 @@
+package org.bndtools.rt.executor;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures the submit throughput of the executor service, from one up to
+ * twice the number of available processors submitting threads. Every task is
+ * a no-op, so that the figures are dominated by the cost of
+ * {@link Executor#execute(Runnable)} and of the per bundle task tracking.
+ * This is a benchmark, not a test: it runs outside of a framework, from its
+ * main method, with the service properties given as key=value arguments.
+ */
+public class ExecutorThroughput {
+
+	static final int	TASKS	= 200000;
+	static final int	WARMUP	= 2;
+
+	final Executor		e;
+
+	ExecutorThroughput(Executor e) {
+		this.e = e;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Hashtable<String,Object> properties = new Hashtable<String,Object>();
+		properties.put("service.pid", ExecutorThroughput.class.getName());
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			properties.put(kv[0], kv.length > 1 ? kv[1] : "");
+		}
+
+		ExecutorImpl executor = new ExecutorImpl();
+		executor.activate(properties, null);
+		try {
+			new ExecutorThroughput(executor).measure();
+		}
+		finally {
+			executor.deactivate();
+		}
+	}
+
+	void measure() throws Exception {
+		int max = Runtime.getRuntime().availableProcessors() * 2;
+
+		for (int i = 0; i < WARMUP; i++)
+			run(max);
+
+		for (int threads = 1; threads <= max; threads *= 2) {
+			long nanos = run(threads);
+			System.out.println(String.format("%2d submitting thread(s): %8d tasks/s", threads,
+					TASKS * TimeUnit.SECONDS.toNanos(1) / nanos));
+		}
+	}
+
+	/**
+	 * Submits {@link #TASKS} tasks, evenly spread over the given number of
+	 * threads, and waits until all of them have been run.
+	 *
+	 * @return the elapsed time in nanoseconds
+	 */
+	long run(int threads) throws Exception {
+		final int perThread = TASKS / threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(perThread * threads);
+		final Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		};
+
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException ie) {
+						return;
+					}
+					for (int j = 0; j < perThread; j++)
+						e.execute(task);
+				}
+			};
+			t.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		if (!done.await(60, TimeUnit.SECONDS))
+			throw new TimeoutException("Tasks did not complete in time");
+		return System.nanoTime() - begin;
+	}
+}
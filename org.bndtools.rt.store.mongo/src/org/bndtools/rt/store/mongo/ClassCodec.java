@@ -0,0 +1,294 @@
+package org.bndtools.rt.store.mongo;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import com.mongodb.*;
+
+/**
+ * Encoding and decoding plan of a document class: its public instance fields
+ * and its constructor are looked up once, with the conversion each field
+ * needs, instead of for every document. The values that are already of the
+ * field type are set directly, the others go through the {@link MongoCodec}
+ * converter.
+ */
+class ClassCodec {
+	static final int	OBJECT	= 0;
+	static final int	STRING	= 1;
+	static final int	BOOLEAN	= 2;
+	static final int	CHAR	= 3;
+	static final int	BYTE	= 4;
+	static final int	SHORT	= 5;
+	static final int	INT		= 6;
+	static final int	LONG	= 7;
+	static final int	FLOAT	= 8;
+	static final int	DOUBLE	= 9;
+	static final int	LIST	= 10;
+
+	static class Property {
+		final Field		field;
+		final String	name;
+		final Type		type;
+		final int		kind;
+		// Elements of a list
+		final Type		element;
+		final int		elementKind;
+
+		Property(Field field) {
+			this.field = field;
+			this.name = field.getName();
+			this.type = field.getGenericType();
+			Class< ? > element = element(type);
+			if (element != null) {
+				this.kind = LIST;
+				this.element = element;
+				this.elementKind = kind(element);
+			} else {
+				this.kind = kind(field.getType());
+				this.element = null;
+				this.elementKind = OBJECT;
+			}
+		}
+	}
+
+	final MongoCodec				mcnv;
+	final Class< ? >				type;
+	final Property[]				properties;
+	final Map<String,Property>		byName	= new HashMap<String,Property>();
+	// Null if the documents cannot be instantiated by the plan
+	final Constructor< ? >			constructor;
+	final Field						extra;
+
+	ClassCodec(MongoCodec mcnv, Class< ? > type) {
+		this.mcnv = mcnv;
+		this.type = type;
+
+		List<Property> properties = new ArrayList<Property>();
+		for (Field f : type.getFields()) {
+			if (!Modifier.isStatic(f.getModifiers())) {
+				accessible(f);
+				Property p = new Property(f);
+				properties.add(p);
+				byName.put(p.name, p);
+			}
+		}
+		this.properties = properties.toArray(new Property[properties.size()]);
+		this.constructor = constructor(type);
+		Property extra = byName.get("__extra");
+		this.extra = extra == null ? null : extra.field;
+	}
+
+	/**
+	 * @return true if the instances are encoded as documents, false if they
+	 *         are encoded as their string representation
+	 */
+	boolean isDocument() {
+		return properties.length > 0;
+	}
+
+	/**
+	 * @return true if the documents can be decoded by the plan
+	 */
+	boolean isDecodable() {
+		return constructor != null;
+	}
+
+	BasicDBObject encode(Object o, int depth) throws Exception {
+		BasicDBObject dbo = new BasicDBObject();
+		for (Property p : properties) {
+			Object value = p.field.get(o);
+			if (value == null)
+				continue;
+
+			switch (p.kind) {
+				case OBJECT :
+				case LIST :
+					value = mcnv.toMongo(value, depth + 1);
+					if (value == null)
+						continue;
+					break;
+
+				case CHAR :
+					value = "" + value;
+					break;
+
+				default :
+					// Already a Mongo type
+			}
+			dbo.put(p.name, value);
+		}
+		return dbo;
+	}
+
+	Object newInstance() throws Exception {
+		return constructor.newInstance();
+	}
+
+	Object decode(DBObject dbo) throws Exception {
+		Object instance = newInstance();
+		for (String key : dbo.keySet())
+			set(instance, key, dbo.get(key));
+		return instance;
+	}
+
+	/**
+	 * Sets the field of the given key to the converted value, or adds the
+	 * value to the __extra field if there is no such field.
+	 */
+	void set(Object instance, String key, Object value) throws Exception {
+		Property p = byName.get(key);
+		if (p != null)
+			p.field.set(instance, decode(p, value));
+		else if (extra != null) {
+			@SuppressWarnings("unchecked")
+			Map<String,Object> map = (Map<String,Object>) extra.get(instance);
+			if (map == null) {
+				map = new HashMap<String,Object>();
+				extra.set(instance, map);
+			}
+			map.put(key, value);
+		} else
+			throw new IllegalArgumentException("No conversion found for a document to " + type + ", no field for key "
+					+ key);
+	}
+
+	private Object decode(Property p, Object value) throws Exception {
+		if (p.kind == LIST && value instanceof List) {
+			List< ? > list = (List< ? >) value;
+			List<Object> result = new ArrayList<Object>(list.size());
+			for (Object member : list)
+				result.add(decode(p.elementKind, p.element, member));
+			return result;
+		}
+		return decode(p.kind, p.type, value);
+	}
+
+	Object decode(int kind, Type type, Object value) throws Exception {
+		if (value != null) {
+			switch (kind) {
+				case STRING :
+					if (value instanceof String)
+						return value;
+					break;
+
+				case BOOLEAN :
+					if (value instanceof Boolean)
+						return value;
+					break;
+
+				case CHAR :
+					// Encoded as a string
+					if (value instanceof String && ((String) value).length() == 1)
+						return ((String) value).charAt(0);
+					break;
+
+				case BYTE :
+					if (value instanceof Number)
+						return ((Number) value).byteValue();
+					break;
+
+				case SHORT :
+					if (value instanceof Number)
+						return ((Number) value).shortValue();
+					break;
+
+				case INT :
+					if (value instanceof Number)
+						return ((Number) value).intValue();
+					break;
+
+				case LONG :
+					if (value instanceof Number)
+						return ((Number) value).longValue();
+					break;
+
+				case FLOAT :
+					if (value instanceof Number)
+						return ((Number) value).floatValue();
+					break;
+
+				case DOUBLE :
+					if (value instanceof Number)
+						return ((Number) value).doubleValue();
+					break;
+
+				case OBJECT :
+					if (value instanceof BasicDBObject && type instanceof Class) {
+						ClassCodec codec = mcnv.codec((Class< ? >) type);
+						if (codec.isDecodable())
+							return codec.decode((DBObject) value);
+					}
+					break;
+			}
+		}
+		return mcnv.converter.convert(type, value);
+	}
+
+	/**
+	 * @return the element class of a list or collection type decoded as an
+	 *         ArrayList, or null
+	 */
+	static Class< ? > element(Type type) {
+		if (!(type instanceof ParameterizedType))
+			return null;
+		ParameterizedType ptype = (ParameterizedType) type;
+		Class< ? > raw = (Class< ? >) ptype.getRawType();
+		Type element = ptype.getActualTypeArguments()[0];
+		if (!raw.isInterface() || !raw.isAssignableFrom(ArrayList.class) || !(element instanceof Class))
+			return null;
+		return (Class< ? >) element;
+	}
+
+	static int kind(Class< ? > c) {
+		if (c == String.class)
+			return STRING;
+		if (c == boolean.class || c == Boolean.class)
+			return BOOLEAN;
+		if (c == char.class || c == Character.class)
+			return CHAR;
+		if (c == byte.class || c == Byte.class)
+			return BYTE;
+		if (c == short.class || c == Short.class)
+			return SHORT;
+		if (c == int.class || c == Integer.class)
+			return INT;
+		if (c == long.class || c == Long.class)
+			return LONG;
+		if (c == float.class || c == Float.class)
+			return FLOAT;
+		if (c == double.class || c == Double.class)
+			return DOUBLE;
+		return OBJECT;
+	}
+
+	/**
+	 * @return the public no-argument constructor of a class decoded from a
+	 *         document by setting its fields, or null
+	 */
+	private Constructor< ? > constructor(Class< ? > type) {
+		if (properties.length == 0 || type.isInterface() || type.isArray() || type.isEnum()
+				|| Modifier.isAbstract(type.getModifiers()) || Map.class.isAssignableFrom(type)
+				|| Collection.class.isAssignableFrom(type) || kind(type) != OBJECT)
+			return null;
+		try {
+			Constructor< ? > c = type.getConstructor();
+			accessible(c);
+			return c;
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Skips the access checks on every call, when allowed.
+	 */
+	private static void accessible(AccessibleObject o) {
+		try {
+			o.setAccessible(true);
+		}
+		catch (SecurityException e) {
+			// the checks will be done
+		}
+	}
+}
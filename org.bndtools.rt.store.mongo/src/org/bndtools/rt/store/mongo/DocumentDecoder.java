@@ -0,0 +1,448 @@
+package org.bndtools.rt.store.mongo;
+
+import java.util.*;
+import java.util.regex.*;
+
+import org.bson.*;
+import org.bson.types.*;
+import org.bndtools.rt.store.mongo.ClassCodec.Property;
+
+import com.mongodb.*;
+
+/**
+ * Reads BSON documents straight into the fields of new instances of the
+ * document class, and returns them as {@link DocumentObject}s. Embedded
+ * documents and lists decodable by their plan are read the same way, the
+ * other values are read into DBObjects by the driver callback then converted
+ * by the {@link ClassCodec}.
+ */
+class DocumentDecoder extends DefaultDBDecoder {
+	final ClassCodec	codec;
+	final Set<String>	keep;
+	final boolean		projection;
+	Callback			callback;
+
+	/**
+	 * @param keep
+	 *            Top level keys whose values must also be available as
+	 *            DBObjects from the {@link DocumentObject}, e.g. to page on them
+	 * @param projection
+	 *            True to ignore the top level keys the class has no field
+	 *            for, e.g. the _id
+	 */
+	DocumentDecoder(ClassCodec codec, Set<String> keep, boolean projection) {
+		this.codec = codec;
+		this.keep = keep;
+		this.projection = projection;
+	}
+
+	static DBDecoderFactory factory(final ClassCodec codec, final Set<String> keep, final boolean projection) {
+		return new DBDecoderFactory() {
+			public DBDecoder create() {
+				return new DocumentDecoder(codec, keep, projection);
+			}
+		};
+	}
+
+	/**
+	 * The callback is reset before each document, it can be reused as the
+	 * decoder is used by one thread at a time
+	 */
+	@Override
+	public DBCallback getDBCallback(DBCollection collection) {
+		if (callback == null || callback.collection != collection)
+			callback = new Callback(collection);
+		return callback;
+	}
+
+	/**
+	 * A document or a list being read
+	 */
+	static class Frame {
+		final String		name;
+		final ClassCodec	codec;
+		final Object		instance;
+		// Elements of a list
+		final Property		property;
+		final List<Object>	list;
+
+		Frame(String name, ClassCodec codec, Object instance) {
+			this.name = name;
+			this.codec = codec;
+			this.instance = instance;
+			this.property = null;
+			this.list = null;
+		}
+
+		Frame(String name, ClassCodec codec, Property property) {
+			this.name = name;
+			this.codec = codec;
+			this.instance = null;
+			this.property = property;
+			this.list = new ArrayList<Object>();
+		}
+	}
+
+	class Callback implements DBCallback {
+		final DBCollection			collection;
+		final ArrayList<Frame>		frames	= new ArrayList<Frame>();
+		Integer						version;
+		Map<String,Object>			raw;
+		// Query failures are reported as a document with an $err field
+		BasicDBObject				error;
+		Object						result;
+
+		// Reads the values the plans do not handle
+		DBCallback					delegate;
+		String						delegateName;
+		int							delegateDepth;
+
+		Callback(DBCollection collection) {
+			this.collection = collection;
+		}
+
+		public void reset() {
+			frames.clear();
+			version = null;
+			raw = null;
+			error = null;
+			result = null;
+			delegate = null;
+		}
+
+		public Object get() {
+			return result;
+		}
+
+		public BSONCallback createBSONCallback() {
+			return new DefaultDBCallback(collection);
+		}
+
+		public void objectStart() {
+			try {
+				frames.add(new Frame(null, codec, codec.newInstance()));
+			}
+			catch (Exception e) {
+				throw wrap(e);
+			}
+		}
+
+		public void objectStart(boolean array) {
+			if (array)
+				arrayStart(null);
+			else
+				objectStart();
+		}
+
+		public void objectStart(String name) {
+			if (delegate(name, false))
+				return;
+			try {
+				ClassCodec c = embedded(name);
+				if (c == null)
+					startDelegate(name, false);
+				else
+					frames.add(new Frame(name, c, c.newInstance()));
+			}
+			catch (Exception e) {
+				throw wrap(e);
+			}
+		}
+
+		public void arrayStart() {
+			arrayStart(null);
+		}
+
+		public void arrayStart(String name) {
+			if (delegate(name, true))
+				return;
+			Frame frame = last();
+			Property p = frame.list != null || isKept(name) ? null : frame.codec.byName.get(name);
+			if (p != null && p.kind == ClassCodec.LIST)
+				frames.add(new Frame(name, frame.codec, p));
+			else
+				startDelegate(name, true);
+		}
+
+		public Object objectDone() {
+			if (delegate != null)
+				return delegateDone(false);
+
+			Frame frame = frames.remove(frames.size() - 1);
+			Object value = frame.list != null ? frame.list : frame.instance;
+			if (frames.isEmpty()) {
+				result = error != null ? error : new DocumentObject(value, frame.codec, version, raw);
+				return result;
+			}
+			decoded(frame.name, value);
+			return value;
+		}
+
+		public Object arrayDone() {
+			if (delegate != null)
+				return delegateDone(true);
+			return objectDone();
+		}
+
+		public void gotNull(String name) {
+			if (delegate != null)
+				delegate.gotNull(name);
+			else
+				got(name, null);
+		}
+
+		public void gotUndefined(String name) {
+			if (delegate != null)
+				delegate.gotUndefined(name);
+			else
+				got(name, null);
+		}
+
+		public void gotMinKey(String name) {
+			if (delegate != null)
+				delegate.gotMinKey(name);
+			else
+				got(name, new MinKey());
+		}
+
+		public void gotMaxKey(String name) {
+			if (delegate != null)
+				delegate.gotMaxKey(name);
+			else
+				got(name, new MaxKey());
+		}
+
+		public void gotBoolean(String name, boolean v) {
+			if (delegate != null)
+				delegate.gotBoolean(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotDouble(String name, double v) {
+			if (delegate != null)
+				delegate.gotDouble(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotInt(String name, int v) {
+			if (delegate != null)
+				delegate.gotInt(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotLong(String name, long v) {
+			if (delegate != null)
+				delegate.gotLong(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotDate(String name, long millis) {
+			if (delegate != null)
+				delegate.gotDate(name, millis);
+			else
+				got(name, new Date(millis));
+		}
+
+		public void gotString(String name, String v) {
+			if (delegate != null)
+				delegate.gotString(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotSymbol(String name, String v) {
+			if (delegate != null)
+				delegate.gotSymbol(name, v);
+			else
+				got(name, v);
+		}
+
+		public void gotRegex(String name, String pattern, String flags) {
+			if (delegate != null)
+				delegate.gotRegex(name, pattern, flags);
+			else
+				got(name, Pattern.compile(pattern, BSON.regexFlags(flags)));
+		}
+
+		public void gotTimestamp(String name, int time, int inc) {
+			if (delegate != null)
+				delegate.gotTimestamp(name, time, inc);
+			else
+				got(name, new BSONTimestamp(time, inc));
+		}
+
+		public void gotObjectId(String name, ObjectId id) {
+			if (delegate != null)
+				delegate.gotObjectId(name, id);
+			else
+				got(name, id);
+		}
+
+		public void gotDBRef(String name, String ns, ObjectId id) {
+			if (delegate != null)
+				delegate.gotDBRef(name, ns, id);
+			else
+				got(name, new BasicDBObject("$ns", ns).append("$id", id));
+		}
+
+		@Deprecated
+		public void gotBinaryArray(String name, byte[] data) {
+			gotBinary(name, BSON.B_GENERAL, data);
+		}
+
+		public void gotBinary(String name, byte type, byte[] data) {
+			if (delegate != null)
+				delegate.gotBinary(name, type, data);
+			else if (type == BSON.B_GENERAL || type == BSON.B_BINARY)
+				got(name, data);
+			else
+				got(name, new Binary(type, data));
+		}
+
+		public void gotUUID(String name, long part1, long part2) {
+			if (delegate != null)
+				delegate.gotUUID(name, part1, part2);
+			else
+				got(name, new UUID(part1, part2));
+		}
+
+		public void gotCode(String name, String code) {
+			if (delegate != null)
+				delegate.gotCode(name, code);
+			else
+				got(name, new Code(code));
+		}
+
+		public void gotCodeWScope(String name, String code, Object scope) {
+			if (delegate != null)
+				delegate.gotCodeWScope(name, code, scope);
+			else
+				got(name, new CodeWScope(code, (BSONObject) scope));
+		}
+
+		private Frame last() {
+			return frames.get(frames.size() - 1);
+		}
+
+		/**
+		 * @return the plan of an embedded document decoded into its field, or
+		 *         null
+		 */
+		private ClassCodec embedded(String name) {
+			Frame frame = last();
+			if (frame.list != null) {
+				if (frame.property.elementKind != ClassCodec.OBJECT)
+					return null;
+				ClassCodec c = frame.codec.mcnv.codec((Class< ? >) frame.property.element);
+				return c.isDecodable() ? c : null;
+			}
+			if (isKept(name))
+				return null;
+			Property p = frame.codec.byName.get(name);
+			if (p == null || p.kind != ClassCodec.OBJECT || !(p.type instanceof Class))
+				return null;
+			ClassCodec c = frame.codec.mcnv.codec((Class< ? >) p.type);
+			return c.isDecodable() ? c : null;
+		}
+
+		private boolean isIgnored(String name) {
+			return projection && frames.size() == 1 && codec.extra == null && !codec.byName.containsKey(name);
+		}
+
+		private boolean isKept(String name) {
+			return frames.size() == 1 && keep.contains(name);
+		}
+
+		/**
+		 * Forwards the start of an embedded document or list to the delegate
+		 * reading one.
+		 */
+		private boolean delegate(String name, boolean array) {
+			if (delegate == null)
+				return false;
+			delegateDepth++;
+			if (array)
+				delegate.arrayStart(name);
+			else
+				delegate.objectStart(name);
+			return true;
+		}
+
+		private void startDelegate(String name, boolean array) {
+			delegate = new DefaultDBCallback(collection);
+			delegate.reset();
+			delegateName = name;
+			delegateDepth = 1;
+			if (array)
+				delegate.arrayStart();
+			else
+				delegate.objectStart();
+		}
+
+		private Object delegateDone(boolean array) {
+			Object value = array ? delegate.arrayDone() : delegate.objectDone();
+			if (--delegateDepth > 0)
+				return value;
+			delegate = null;
+			got(delegateName, value);
+			return value;
+		}
+
+		/**
+		 * Sets a value read by the driver
+		 */
+		private void got(String name, Object value) {
+			Frame frame = last();
+			try {
+				if (frames.size() == 1 && (error != null || name.startsWith("$"))) {
+					if (error == null)
+						error = new BasicDBObject();
+					error.put(name, value);
+				} else if (frame.list != null)
+					frame.list.add(frame.codec.decode(frame.property.elementKind, frame.property.element, value));
+				else if (frames.size() == 1 && name.equals("__version"))
+					version = ((Number) value).intValue();
+				else if (frames.size() == 1 && (name.equals("__keywords") || name.equals("__score")))
+					; // Only used by the queries
+				else {
+					if (isKept(name)) {
+						if (raw == null)
+							raw = new HashMap<String,Object>();
+						raw.put(name, value);
+					}
+					if (!isIgnored(name))
+						frame.codec.set(frame.instance, name, value);
+				}
+			}
+			catch (Exception e) {
+				throw wrap(e);
+			}
+		}
+
+		/**
+		 * Sets a value decoded by a plan
+		 */
+		private void decoded(String name, Object value) {
+			Frame frame = last();
+			try {
+				if (frame.list != null)
+					frame.list.add(value);
+				else
+					frame.codec.byName.get(name).field.set(frame.instance, value);
+			}
+			catch (Exception e) {
+				throw wrap(e);
+			}
+		}
+
+		private RuntimeException wrap(Exception e) {
+			if (e instanceof RuntimeException)
+				return (RuntimeException) e;
+			return new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.bndtools.rt.store.mongo;
+
+import java.io.*;
+import java.util.*;
+
+import org.bson.*;
+import org.bndtools.rt.store.mongo.ClassCodec.Property;
+
+import com.mongodb.*;
+
+/**
+ * Writes the {@link DocumentObject}s to BSON straight from their fields,
+ * without building a BasicDBObject tree first. The values the plans do not
+ * know about, e.g. maps and files, are still converted by
+ * {@link MongoCodec#toMongo(Object, int)}. Not thread safe, like the driver
+ * encoders.
+ */
+class DocumentEncoder extends DefaultDBEncoder {
+	final MongoCodec	mcnv;
+
+	DocumentEncoder(MongoCodec mcnv) {
+		this.mcnv = mcnv;
+	}
+
+	@Override
+	protected int putObject(String name, BSONObject o) {
+		if (!(o instanceof DocumentObject))
+			return super.putObject(name, o);
+
+		DocumentObject d = (DocumentObject) o;
+		int start = _buf.getPosition();
+		try {
+			putDocument(name, d.document, d.codec, d.version, 0);
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return _buf.getPosition() - start;
+	}
+
+	/**
+	 * Same layout as {@link #putObject(String, BSONObject)}: the _id comes
+	 * first in the top level document.
+	 */
+	private void putDocument(String name, Object document, ClassCodec codec, Integer version, int depth)
+			throws Exception {
+		if (name != null)
+			_put(BSON.OBJECT, name);
+		int sizePos = _buf.getPosition();
+		_buf.writeInt(0);
+
+		Property id = name == null ? codec.byName.get("_id") : null;
+		if (id != null)
+			putField(id, document, depth);
+		for (Property p : codec.properties) {
+			if (p != id)
+				putField(p, document, depth);
+		}
+		if (version != null)
+			putNumber("__version", version);
+
+		_buf.write(BSON.EOO);
+		_buf.writeInt(sizePos, _buf.getPosition() - sizePos);
+	}
+
+	private void putField(Property p, Object document, int depth) throws Exception {
+		Object value = p.field.get(document);
+		if (value == null)
+			return;
+
+		switch (p.kind) {
+			case ClassCodec.STRING :
+				putString(p.name, (String) value);
+				break;
+
+			case ClassCodec.BOOLEAN :
+				putBoolean(p.name, (Boolean) value);
+				break;
+
+			case ClassCodec.CHAR :
+				putString(p.name, value.toString());
+				break;
+
+			case ClassCodec.OBJECT :
+			case ClassCodec.LIST :
+				putValue(p.name, value, depth + 1);
+				break;
+
+			default :
+				putNumber(p.name, (Number) value);
+		}
+	}
+
+	private void putValue(String name, Object value, int depth) throws Exception {
+		if (value == null) {
+			putNull(name);
+			return;
+		}
+
+		boolean array = value instanceof Object[] || value instanceof Iterable && !(value instanceof DBObject);
+		if (array || !isMongoType(value)) {
+			ClassCodec codec = array ? null : mcnv.codec(value.getClass());
+			if (array || codec.isDocument()) {
+				if (depth >= MongoCodec.MAX_DEPTH)
+					throw new IllegalArgumentException("Infinite cycle in one of the documents field");
+				if (array)
+					putArray(name, value instanceof Object[] ? Arrays.asList((Object[]) value) : (Iterable< ? >) value,
+							depth);
+				else
+					putDocument(name, value, codec, null, depth);
+				return;
+			}
+		}
+		_putObjectField(name, mcnv.toMongo(value, depth));
+	}
+
+	private void putArray(String name, Iterable< ? > values, int depth) throws Exception {
+		_put(BSON.ARRAY, name);
+		int sizePos = _buf.getPosition();
+		_buf.writeInt(0);
+
+		int i = 0;
+		for (Object value : values)
+			putValue(Integer.toString(i++), value, depth + 1);
+
+		_buf.write(BSON.EOO);
+		_buf.writeInt(sizePos, _buf.getPosition() - sizePos);
+	}
+
+	/**
+	 * @return true for the values {@link MongoCodec#toMongo(Object, int)}
+	 *         does not encode as documents
+	 */
+	private static boolean isMongoType(Object value) {
+		return value instanceof Boolean || value instanceof Number || value instanceof String
+				|| value instanceof DBObject || value instanceof Character || value instanceof File
+				|| value instanceof Map || value.getClass().isArray();
+	}
+}
@@ -0,0 +1,105 @@
+package org.bndtools.rt.store.mongo;
+
+import java.util.*;
+
+import org.bson.*;
+import org.bndtools.rt.store.mongo.ClassCodec.Property;
+
+import com.mongodb.*;
+
+/**
+ * A document of the store seen as a DBObject, without copying its fields: it
+ * is written by the {@link DocumentEncoder} straight from the fields, and
+ * read by the {@link DocumentDecoder} straight into them. The driver only
+ * uses the DBObject view to check the keys and the _id.
+ */
+class DocumentObject implements DBObject {
+	final Object				document;
+	final ClassCodec			codec;
+	// Null for an embedded document
+	final Integer				version;
+	// Values of the keys read as DBObjects, see DocumentDecoder
+	final Map<String,Object>	raw;
+	boolean						partial;
+
+	DocumentObject(Object document, ClassCodec codec, Integer version, Map<String,Object> raw) {
+		this.document = document;
+		this.codec = codec;
+		this.version = version;
+		this.raw = raw;
+	}
+
+	public Object get(String key) {
+		if (key.equals("__version"))
+			return version;
+		if (raw != null && raw.containsKey(key))
+			return raw.get(key);
+		Property p = codec.byName.get(key);
+		if (p == null)
+			return null;
+		try {
+			return p.field.get(document);
+		}
+		catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public boolean containsField(String key) {
+		return keySet().contains(key);
+	}
+
+	@Deprecated
+	public boolean containsKey(String key) {
+		return containsField(key);
+	}
+
+	public Set<String> keySet() {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (Property p : codec.properties)
+			keys.add(p.name);
+		if (version != null)
+			keys.add("__version");
+		return keys;
+	}
+
+	@SuppressWarnings({
+			"rawtypes", "unchecked"
+	})
+	public Map toMap() {
+		Map map = new LinkedHashMap();
+		for (String key : keySet())
+			map.put(key, get(key));
+		return map;
+	}
+
+	public Object put(String key, Object v) {
+		throw new UnsupportedOperationException("Documents are only modified through their fields");
+	}
+
+	public void putAll(BSONObject o) {
+		throw new UnsupportedOperationException("Documents are only modified through their fields");
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void putAll(Map m) {
+		throw new UnsupportedOperationException("Documents are only modified through their fields");
+	}
+
+	public Object removeField(String key) {
+		throw new UnsupportedOperationException("Documents are only modified through their fields");
+	}
+
+	public void markAsPartialObject() {
+		partial = true;
+	}
+
+	public boolean isPartialObject() {
+		return partial;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+}
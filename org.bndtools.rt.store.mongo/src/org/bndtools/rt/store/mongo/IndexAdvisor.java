@@ -0,0 +1,83 @@
+package org.bndtools.rt.store.mongo;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.osgi.service.log.*;
+
+import com.mongodb.*;
+
+/**
+ * Logs the shapes of the queries of the cursors that the database answers
+ * without an index, sorts in memory, or answers slower than a threshold. The
+ * shape of a query is the query with its values left out, so that the plan of
+ * each shape is explained once, with one more round trip, whatever the values.
+ */
+class IndexAdvisor {
+	final static int			MAX_SHAPES	= 1000;
+	final static Set<String>	LOGICAL		= new HashSet<String>(Arrays.asList("$and", "$or", "$nor"));
+
+	final MongoDBImpl			handler;
+	// Milliseconds, or 0 to only report the plans without index
+	final long					slow;
+	final Set<String>			shapes		= Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+	IndexAdvisor(MongoDBImpl handler, long slow) {
+		this.handler = handler;
+		this.slow = slow;
+	}
+
+	void advise(DBCollection collection, DBObject query, DBObject sort) {
+		if (shapes.size() >= MAX_SHAPES)
+			return;
+		String shape = collection.getName() + " " + shape(query) + (sort == null ? "" : " sorted by " + sort);
+		if (!shapes.add(shape))
+			return;
+
+		try {
+			DBCursor cursor = collection.find(query);
+			if (sort != null)
+				cursor.sort(sort);
+			DBObject plan = cursor.explain();
+			String type = String.valueOf(plan.get("cursor"));
+			Object millis = plan.get("millis");
+			if (type.startsWith("BasicCursor"))
+				log("Query without index on " + shape + ", scanned " + plan.get("nscanned") + " documents");
+			else if (Boolean.TRUE.equals(plan.get("scanAndOrder")))
+				log("Query sorted in memory on " + shape + ", with " + type);
+			else if (slow > 0 && millis instanceof Number && ((Number) millis).longValue() >= slow)
+				log("Slow query on " + shape + ", " + millis + " ms with " + type);
+		}
+		catch (MongoException e) {
+			log("Cannot explain the query " + shape + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the query with its values replaced by ?, and its fields sorted
+	 */
+	static Object shape(Object query) {
+		if (!(query instanceof DBObject) || query instanceof List)
+			return "?";
+
+		DBObject o = (DBObject) query;
+		BasicDBObject shape = new BasicDBObject();
+		for (String key : new TreeSet<String>(o.keySet())) {
+			Object value = o.get(key);
+			if (value instanceof List && LOGICAL.contains(key)) {
+				List<Object> operands = new ArrayList<Object>();
+				for (Object operand : (List< ? >) value)
+					operands.add(shape(operand));
+				shape.put(key, operands);
+			} else
+				shape.put(key, shape(value));
+		}
+		return shape;
+	}
+
+	private void log(String message) {
+		LogService log = handler.log;
+		if (log != null)
+			log.log(LogService.LOG_WARNING, message);
+	}
+}
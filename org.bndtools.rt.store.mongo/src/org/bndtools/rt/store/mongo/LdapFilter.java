@@ -0,0 +1,342 @@
+package org.bndtools.rt.store.mongo;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import com.mongodb.*;
+
+/**
+ * An LDAP filter template parsed once into a tree of expressions. The format
+ * specifiers of the template (see {@link String#format(String, Object...)})
+ * become parameter slots in the values of the simple expressions, so that
+ * binding arguments only formats them, without parsing the filter again.
+ * Arguments are values: they cannot change the structure of the filter, but
+ * a * in an argument is still a wildcard. Templates with specifiers anywhere
+ * else, e.g. in a key, are formatted and parsed on every call.
+ */
+abstract class LdapFilter {
+	final static Pattern	FORMAT		= Pattern.compile("%(\\d+\\$)?([-#+ 0,(\\<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+	final static char		SLOT		= '\uE000';
+	final static int		MAX_SLOTS	= 0x1000;
+
+	/**
+	 * A format specifier
+	 */
+	static class Slot {
+		final String	spec;
+		// -1 for the next argument
+		final int		index;
+
+		Slot(String spec, int index) {
+			this.spec = spec;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Thrown when a template cannot be compiled
+	 */
+	@SuppressWarnings("serial")
+	static class Dynamic extends Exception {}
+
+	/**
+	 * @return the filter to bind to arguments
+	 */
+	static LdapFilter compile(String ldap) throws Exception {
+		if (!ldap.startsWith("("))
+			ldap = "(" + ldap + ")";
+
+		List<Slot> slots = new ArrayList<Slot>();
+		StringBuilder skeleton = new StringBuilder();
+		Matcher m = FORMAT.matcher(ldap);
+		int last = 0;
+		while (m.find()) {
+			if (!isLiteral(ldap, last, m.start()))
+				return new Formatted(ldap);
+			skeleton.append(ldap, last, m.start());
+			last = m.end();
+			String conversion = m.group(6);
+			String flags = m.group(2);
+			if (conversion.equals("%"))
+				skeleton.append('%');
+			else if (conversion.equals("n"))
+				skeleton.append(String.format("%n"));
+			else if (flags != null && flags.indexOf('<') >= 0 || slots.size() == MAX_SLOTS)
+				return new Formatted(ldap);
+			else {
+				String index = m.group(1);
+				String spec = index == null ? m.group() : "%" + m.group().substring(1 + index.length());
+				skeleton.append((char) (SLOT + slots.size()));
+				slots.add(new Slot(spec, index == null ? -1 : Integer.parseInt(index.substring(0, index.length() - 1)) - 1));
+			}
+		}
+		if (!isLiteral(ldap, last, ldap.length()))
+			return new Formatted(ldap);
+		skeleton.append(ldap, last, ldap.length());
+
+		try {
+			Parser parser = new Parser(skeleton.toString());
+			return new Compiled(parser.expr(parser.read()), slots.toArray(new Slot[slots.size()]));
+		}
+		catch (Dynamic e) {
+			return new Formatted(ldap);
+		}
+	}
+
+	/**
+	 * @return false if the text contains a % that is not a format specifier,
+	 *         left to {@link String#format(String, Object...)} to report, or a
+	 *         character taken for a slot
+	 */
+	private static boolean isLiteral(String ldap, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = ldap.charAt(i);
+			if (c == '%' || isSlot(c))
+				return false;
+		}
+		return true;
+	}
+
+	abstract DBObject bind(MongoStoreImpl< ? > store, Object... args) throws Exception;
+
+	/**
+	 * A filter parsed once
+	 */
+	static class Compiled extends LdapFilter {
+		final Node		root;
+		final Slot[]	slots;
+
+		Compiled(Node root, Slot[] slots) {
+			this.root = root;
+			this.slots = slots;
+		}
+
+		@Override
+		DBObject bind(MongoStoreImpl< ? > store, Object... args) throws Exception {
+			String[] values = new String[slots.length];
+			int next = 0;
+			for (int i = 0; i < slots.length; i++) {
+				Slot slot = slots[i];
+				int index = slot.index < 0 ? next++ : slot.index;
+				if (index >= args.length)
+					throw new MissingFormatArgumentException(slot.spec);
+				values[i] = String.format(slot.spec, argument(args[index]));
+			}
+			return root.bind(store, values);
+		}
+	}
+
+	/**
+	 * A template formatted and parsed on every call
+	 */
+	static class Formatted extends LdapFilter {
+		final String	ldap;
+
+		Formatted(String ldap) {
+			this.ldap = ldap;
+		}
+
+		@Override
+		DBObject bind(MongoStoreImpl< ? > store, Object... args) throws Exception {
+			Object[] formatted = new Object[args.length];
+			for (int i = 0; i < args.length; i++)
+				formatted[i] = argument(args[i]);
+			String filter = String.format(ldap, formatted);
+			if (!filter.startsWith("("))
+				filter = "(" + filter + ")";
+			Parser parser = new Parser(filter);
+			return parser.expr(parser.read()).bind(store, new String[0]);
+		}
+	}
+
+	static boolean isSlot(int c) {
+		return c >= SLOT && c < SLOT + MAX_SLOTS;
+	}
+
+	static Object argument(Object arg) {
+		if (arg instanceof byte[])
+			return "[h" + aQute.lib.hex.Hex.toHexString((byte[]) arg) + "]";
+		// TODO more conversions?
+		return arg;
+	}
+
+	static abstract class Node {
+		abstract DBObject bind(MongoStoreImpl< ? > store, String[] values) throws Exception;
+	}
+
+	/**
+	 * &, | or !
+	 */
+	static class Composite extends Node {
+		final String	operator;
+		final Node[]	operands;
+
+		Composite(String operator, List<Node> operands) {
+			this.operator = operator;
+			this.operands = operands.toArray(new Node[operands.size()]);
+		}
+
+		@Override
+		DBObject bind(MongoStoreImpl< ? > store, String[] values) throws Exception {
+			List<DBObject> exprs = new ArrayList<DBObject>(operands.length);
+			for (Node operand : operands)
+				exprs.add(operand.bind(store, values));
+			return new BasicDBObject(operator, exprs);
+		}
+	}
+
+	/**
+	 * key op value, where the value is made of literal text and slots
+	 */
+	static class Simple extends Node {
+		final String	key;
+		final String	op;
+		final String	value;
+		final boolean	regex;
+		final boolean	slots;
+
+		Simple(String key, String op, String value, boolean regex) {
+			this.key = key;
+			this.op = op;
+			this.value = value;
+			this.regex = regex;
+			boolean slots = false;
+			for (int i = 0; i < value.length(); i++)
+				slots |= isSlot(value.charAt(i));
+			this.slots = slots;
+		}
+
+		@Override
+		DBObject bind(MongoStoreImpl< ? > store, String[] values) throws Exception {
+			String v = value;
+			boolean r = regex;
+			if (slots) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < value.length(); i++) {
+					char c = value.charAt(i);
+					if (isSlot(c)) {
+						String arg = values[c - SLOT];
+						for (int j = 0; j < arg.length(); j++) {
+							char a = arg.charAt(j);
+							if (a == '\\' && j + 1 < arg.length())
+								a = arg.charAt(++j);
+							else if (a == '*') {
+								r = true;
+								sb.append('.');
+							}
+							sb.append(a);
+						}
+					} else
+						sb.append(c);
+				}
+				v = sb.toString();
+				boolean valid = v.length() > 0;
+				for (int i = 0; i < v.length(); i++)
+					valid &= !Character.isWhitespace(v.charAt(i));
+				if (!valid)
+					throw new IllegalArgumentException("Not a valid LDAP expression " + key + op + v);
+			}
+			return store.expr(key, op, v, r);
+		}
+	}
+
+	/**
+	 * Parses a filter, whose values may contain slots
+	 */
+	static class Parser {
+		final String	ldap;
+		int				n;
+
+		Parser(String ldap) {
+			this.ldap = ldap;
+		}
+
+		int read() {
+			return n < ldap.length() ? ldap.charAt(n++) : -1;
+		}
+
+		Node expr(int c) throws Exception {
+			while (Character.isWhitespace(c))
+				c = read();
+
+			assert c == '(';
+
+			do {
+				c = read();
+			} while (Character.isWhitespace(c));
+
+			switch (c) {
+				case '&' :
+					return new Composite("$and", exprs());
+
+				case '|' :
+					return new Composite("$or", exprs());
+
+				case '!' :
+					return new Composite("$nor", exprs());
+
+				case -1 :
+					throw new EOFException();
+
+				default :
+					if (isSlot(c))
+						throw new Dynamic();
+
+					StringBuilder sb = new StringBuilder();
+					boolean regex = false;
+
+					while (true) {
+						if (c < 0)
+							throw new EOFException();
+
+						if (c == '\\') {
+							c = read();
+							if (c < 0)
+								throw new EOFException();
+							if (isSlot(c))
+								throw new Dynamic();
+						} else if (c == '*') {
+							regex = true;
+							sb.append(".");
+						} else if (c == ')')
+							break;
+
+						sb.append((char) c);
+						c = read();
+					}
+					Matcher m = MongoStoreImpl.SIMPLE_EXPR.matcher(sb);
+					if (!m.matches())
+						throw new IllegalArgumentException("Not a valid LDAP expression " + sb);
+
+					String key = m.group(1);
+					String op = m.group(2);
+					String value = m.group(3);
+					for (int i = 0; i < key.length(); i++) {
+						if (isSlot(key.charAt(i)))
+							throw new Dynamic();
+					}
+					return new Simple(key, op, value, regex);
+			}
+		}
+
+		private List<Node> exprs() throws Exception {
+			int c;
+			do {
+				c = read();
+			} while (Character.isWhitespace(c));
+
+			List<Node> list = new ArrayList<Node>();
+			while (c == '(') {
+				list.add(expr(c));
+
+				// read ( for another or ) for close
+				c = read();
+			}
+			if (isSlot(c))
+				throw new Dynamic();
+			return list;
+		}
+
+	}
+}
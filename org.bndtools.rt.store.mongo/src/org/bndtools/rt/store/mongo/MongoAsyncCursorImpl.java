@@ -0,0 +1,146 @@
+package org.bndtools.rt.store.mongo;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.bndtools.service.store.*;
+
+import com.mongodb.*;
+
+/**
+ * Runs the endpoints of a {@link MongoCursorImpl} on the pool of its
+ * {@link MongoDBImpl}, and publishes its documents as they are requested.
+ */
+public class MongoAsyncCursorImpl<T> implements AsyncCursor<T> {
+	final MongoCursorImpl<T>	cursor;
+
+	public MongoAsyncCursorImpl(MongoCursorImpl<T> cursor) {
+		this.cursor = cursor;
+	}
+
+	public CompletionStage<T> first() {
+		return cursor.store.handler.submit(new Callable<T>() {
+			public T call() throws Exception {
+				return cursor.first();
+			}
+		});
+	}
+
+	public CompletionStage<Integer> count() {
+		return cursor.store.handler.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return cursor.count();
+			}
+		});
+	}
+
+	public void subscribe(Subscriber< ? super T> subscriber) {
+		MongoSubscription subscription = new MongoSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Fetches the documents on the pool while there is demand. The demand of
+	 * a subscriber calling {@link #request(long)} while it is being drained is
+	 * drained by the same task, so the subscriber is called by one thread at a
+	 * time and in order. The driver cursor fetches batches of at most the
+	 * outstanding demand, up to the batch size of the cursor if set, or
+	 * {@link MongoCursorImpl#BATCH_SIZE}.
+	 */
+	class MongoSubscription implements Subscription, MongoDBImpl.Task {
+		final Subscriber< ? super T>	subscriber;
+		final AtomicLong				demand	= new AtomicLong();
+		// Number of drains requested while the task runs
+		final AtomicInteger				wip		= new AtomicInteger();
+		volatile boolean				cancelled;
+		volatile Throwable				failure;
+		// Only used by the draining task
+		DBCursor						dbCursor;
+		boolean							done;
+
+		MongoSubscription(Subscriber< ? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (n <= 0)
+				failure = new IllegalArgumentException("The number of requested documents must be positive: " + n);
+			else {
+				long current, next;
+				do {
+					current = demand.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0)
+				return;
+			try {
+				cursor.store.handler.executor().execute(this);
+			}
+			catch (RejectedExecutionException e) {
+				failure = e;
+				run();
+			}
+		}
+
+		public void abort(Throwable reason) {
+			failure = reason;
+			run();
+		}
+
+		public void run() {
+			int missed = 1;
+			do {
+				if (!done)
+					emit();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void emit() {
+			try {
+				long n = demand.get();
+				while (n > 0 && !cancelled && failure == null) {
+					if (dbCursor == null)
+						dbCursor = cursor.getDBCursor();
+					int max = cursor.batchSize != 0 ? cursor.batchSize : MongoCursorImpl.BATCH_SIZE;
+					dbCursor.batchSize((int) Math.min(n, max));
+					if (!dbCursor.hasNext()) {
+						close();
+						subscriber.onComplete();
+						return;
+					}
+					subscriber.onNext(cursor.decode(dbCursor.next()));
+					n = demand.decrementAndGet();
+				}
+				if (cancelled)
+					close();
+				else if (failure != null) {
+					close();
+					subscriber.onError(failure);
+				}
+			}
+			catch (Throwable t) {
+				if (!done) {
+					close();
+					subscriber.onError(t);
+				}
+			}
+		}
+
+		private void close() {
+			done = true;
+			if (dbCursor != null)
+				dbCursor.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.bndtools.rt.store.mongo;
+
+import java.util.concurrent.*;
+
+import org.bndtools.service.store.*;
+
+/**
+ * Runs the blocking operations of a {@link MongoStoreImpl} on the pool of its
+ * {@link MongoDBImpl}.
+ */
+public class MongoAsyncStoreImpl<T> implements AsyncStore<T> {
+	final MongoStoreImpl<T>	store;
+
+	public MongoAsyncStoreImpl(MongoStoreImpl<T> store) {
+		this.store = store;
+	}
+
+	public CompletionStage<T> insert(final T document) {
+		return store.handler.submit(new Callable<T>() {
+			public T call() throws Exception {
+				return store.insert(document);
+			}
+		});
+	}
+
+	public CompletionStage<Void> update(final T document, final String... fields) {
+		return store.handler.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				store.update(document, fields);
+				return null;
+			}
+		});
+	}
+
+	public CompletionStage<Void> upsert(final T document) {
+		return store.handler.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				store.upsert(document);
+				return null;
+			}
+		});
+	}
+
+	public CompletionStage<Long> count() {
+		return store.handler.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				return store.count();
+			}
+		});
+	}
+}
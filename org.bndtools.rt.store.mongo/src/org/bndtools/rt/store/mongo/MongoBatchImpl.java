@@ -0,0 +1,239 @@
+package org.bndtools.rt.store.mongo;
+
+import java.nio.*;
+import java.util.*;
+
+import org.bndtools.service.store.*;
+import org.bndtools.service.store.BatchResult.Status;
+
+import com.mongodb.*;
+
+/**
+ * Writes the documents by chunks of {@link #size}. For each chunk, the _ids
+ * already in the collection are fetched with a single query, so that the
+ * duplicates can be reported per document, then all the new documents are
+ * sent with a single insert. The driver has no bulk update, so upserting an
+ * existing document still takes one round trip. An ordered batch sends the
+ * new documents up to the next update together, so that it stops at the
+ * first failure, whether of an insert or of an update.
+ */
+public class MongoBatchImpl<T> implements Batch<T> {
+	static final int		DEFAULT_SIZE	= 1000;
+
+	final MongoStoreImpl<T>	store;
+	int						size			= DEFAULT_SIZE;
+	boolean					ordered			= true;
+
+	public MongoBatchImpl(MongoStoreImpl<T> store) {
+		this.store = store;
+	}
+
+	public MongoBatchImpl<T> size(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Batch size should be a positive integer");
+		}
+		this.size = size;
+		return this;
+	}
+
+	public MongoBatchImpl<T> ordered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	public BatchResult<T> insertAll(Collection< ? extends T> documents) throws Exception {
+		return write(documents, false);
+	}
+
+	public BatchResult<T> upsertAll(Collection< ? extends T> documents) throws Exception {
+		return write(documents, true);
+	}
+
+	private BatchResult<T> write(Collection< ? extends T> documents, boolean upsert) throws Exception {
+		BatchResult<T> result = new BatchResult<T>();
+		List<T> chunk = new ArrayList<T>(Math.min(size, documents.size()));
+		boolean stopped = false;
+		for (T document : documents) {
+			if (stopped) {
+				result.add(document, Status.SKIPPED, null);
+				continue;
+			}
+			chunk.add(document);
+			if (chunk.size() == size) {
+				stopped = !chunk(chunk, upsert, result);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			chunk(chunk, upsert, result);
+		return result;
+	}
+
+	/**
+	 * Writes a chunk of documents and adds their results.
+	 *
+	 * @return false if an ordered batch must stop
+	 */
+	private boolean chunk(List<T> documents, boolean upsert, BatchResult<T> result) throws Exception {
+		int n = documents.size();
+		Status[] status = new Status[n];
+		String[] errors = new String[n];
+		boolean[] update = new boolean[n];
+
+		List<Object> ids = new ArrayList<Object>(n);
+		for (T document : documents) {
+			if (store._id.get(document) == null)
+				store.attributeID(document);
+			ids.add(store.mcnv.toMongo(store._id.get(document)));
+		}
+
+		// A document is a duplicate if its _id is in the collection, or
+		// earlier in the chunk
+		Set<Object> existing = existing(ids);
+		Set<Object> seen = new HashSet<Object>();
+		int stop = n;
+		for (int i = 0; i < n; i++) {
+			Object key = key(ids.get(i));
+			boolean duplicate = existing.contains(key) || !seen.add(key);
+			if (duplicate && upsert) {
+				update[i] = true;
+			} else if (duplicate) {
+				status[i] = Status.DUPLICATE;
+				errors[i] = "Duplicate key: _id " + ids.get(i);
+				if (ordered) {
+					stop = i;
+					break;
+				}
+			}
+		}
+
+		// Ordered, only the inserts up to the next update are sent together,
+		// so that nothing after a failed update is written
+		int i = 0;
+		while (i < stop) {
+			List<Integer> run = new ArrayList<Integer>();
+			for (; i < stop && !(ordered && update[i]); i++)
+				if (!update[i] && status[i] == null)
+					run.add(i);
+			stop = insert(documents, ids, run, status, errors, stop);
+			if (i < stop) {
+				if (!update(documents.get(i), i, status, errors))
+					stop = i;
+				i++;
+			}
+		}
+		if (!ordered) {
+			for (i = 0; i < n; i++)
+				if (update[i])
+					update(documents.get(i), i, status, errors);
+		}
+
+		for (i = 0; i < n; i++) {
+			T document = documents.get(i);
+			if (status[i] == null || ordered && i > stop) {
+				status[i] = Status.SKIPPED;
+				errors[i] = null;
+			} else if (status[i] == Status.INSERTED)
+				store.versions.put(document, 0);
+			result.add(document, status[i], errors[i]);
+		}
+		return stop == n;
+	}
+
+	/**
+	 * Inserts the documents of the chunk at the given indexes with a single
+	 * request.
+	 * 
+	 * @return the index of the first failed document if the batch is ordered,
+	 *         else the given stop index
+	 */
+	private int insert(List<T> documents, List<Object> ids, List<Integer> indexes, Status[] status, String[] errors,
+			int stop) throws Exception {
+		if (indexes.isEmpty())
+			return stop;
+		List<DBObject> inserts = new ArrayList<DBObject>(indexes.size());
+		for (int i : indexes)
+			inserts.add(store.document(documents.get(i), 0));
+		try {
+			store.collection.insert(inserts.toArray(new DBObject[inserts.size()]),
+					WriteConcern.SAFE.continueOnErrorForInsert(!ordered), new DocumentEncoder(store.mcnv));
+			for (int i : indexes)
+				status[i] = Status.INSERTED;
+		}
+		catch (MongoException e) {
+			// Another unique index, or a concurrent insertion. The
+			// documents now present were inserted by this request.
+			List<Object> insertedIds = new ArrayList<Object>(indexes.size());
+			for (int i : indexes)
+				insertedIds.add(ids.get(i));
+			Set<Object> present = existing(insertedIds);
+			Status failure = e instanceof MongoException.DuplicateKey ? Status.DUPLICATE : Status.FAILED;
+			boolean failed = false;
+			for (int i : indexes) {
+				if (present.contains(key(ids.get(i))) && !(ordered && failed))
+					status[i] = Status.INSERTED;
+				else if (ordered && failed)
+					status[i] = Status.SKIPPED;
+				else {
+					status[i] = failure;
+					errors[i] = e.getMessage();
+					if (ordered)
+						stop = i;
+					failed = true;
+				}
+			}
+		}
+		return stop;
+	}
+
+	/**
+	 * Replaces the existing document at the given index of the chunk.
+	 * 
+	 * @return false if the update failed
+	 */
+	private boolean update(T document, int i, Status[] status, String[] errors) throws Exception {
+		try {
+			WriteResult r = store.collection.update(store.filter(document), store.replace(document), false, false,
+					WriteConcern.SAFE);
+			if (r.getN() == 1) {
+				status[i] = Status.UPDATED;
+				return true;
+			}
+			status[i] = Status.FAILED;
+			errors[i] = "No corresponding document in the database";
+		}
+		catch (MongoException e) {
+			status[i] = Status.FAILED;
+			errors[i] = e.getMessage();
+		}
+		return false;
+	}
+
+	/**
+	 * @return the keys of the given _ids present in the collection
+	 */
+	private Set<Object> existing(List<Object> ids) {
+		Set<Object> existing = new HashSet<Object>();
+		if (ids.isEmpty())
+			return existing;
+		DBCursor cursor = store.collection.find(new BasicDBObject("_id", new BasicDBObject("$in", ids)),
+				new BasicDBObject("_id", 1));
+		try {
+			while (cursor.hasNext())
+				existing.add(key(cursor.next().get("_id")));
+		}
+		finally {
+			cursor.close();
+		}
+		return existing;
+	}
+
+	/**
+	 * Byte array ids are compared by content
+	 */
+	private static Object key(Object id) {
+		if (id instanceof byte[])
+			return ByteBuffer.wrap((byte[]) id);
+		return id;
+	}
+}
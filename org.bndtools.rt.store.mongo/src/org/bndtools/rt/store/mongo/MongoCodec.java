@@ -3,6 +3,7 @@ package org.bndtools.rt.store.mongo;
 import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.osgi.service.log.*;
 
@@ -32,7 +33,12 @@ public class MongoCodec {
 
 											});
 	final static JSONCodec		codec		= new JSONCodec().setIgnorenull(true);
+	/**
+	 * Deepest nesting of a document accepted by MongoDB, deeper means a cycle
+	 */
+	final static int			MAX_DEPTH	= 100;
 	final MongoStoreImpl< ? >	store;
+	final ConcurrentMap<Class< ? >,ClassCodec>	codecs	= new ConcurrentHashMap<Class< ? >,ClassCodec>();
 
 	MongoCodec(MongoStoreImpl< ? > store) {
 		this.store = store;
@@ -79,10 +85,10 @@ public class MongoCodec {
 	 * @throws Exception
 	 */
 	Object toMongo(Object o) throws Exception {
-		return toMongo(o, new HashSet<Object>());
+		return toMongo(o, 0);
 	}
 	
-	private Object toMongo(Object o, Set<Object> seenObjects) throws Exception {
+	Object toMongo(Object o, int depth) throws Exception {
 		if (o == null)
 			return o;
 
@@ -99,72 +105,74 @@ public class MongoCodec {
 			return "" + o;
 		}
 		
-		if (seenObjects.contains(o)) {
+		// A cycle shows up as a document nested too deeply, no need to track
+		// the objects being encoded
+		if (depth >= MAX_DEPTH) {
 			throw new IllegalArgumentException("Infinite cycle in one of the documents field");
-		} else {
-			seenObjects.add(o);
 		}
 		
-		try {
-			if (o instanceof Iterable) {
-				BasicDBList list = new BasicDBList();
-				for (Object oo : (Iterable< ? >) o)
-					list.add(toMongo(oo, seenObjects));
+		if (o instanceof Iterable) {
+			BasicDBList list = new BasicDBList();
+			for (Object oo : (Iterable< ? >) o)
+				list.add(toMongo(oo, depth + 1));
 
-				return list;
-			}
+			return list;
+		}
 
-			if (o.getClass().isArray()) {
-				Class< ? > component = o.getClass().getComponentType();
-				if (component.isPrimitive())
-					if (component == char.class)
-						return new String((char[]) o);
-					else
-						return o;
+		if (o.getClass().isArray()) {
+			Class< ? > component = o.getClass().getComponentType();
+			if (component.isPrimitive())
+				if (component == char.class)
+					return new String((char[]) o);
+				else
+					return o;
 
-				BasicDBList list = new BasicDBList();
-				for (Object oo : (Object[]) o)
-					list.add(toMongo(oo, seenObjects));
+			BasicDBList list = new BasicDBList();
+			for (Object oo : (Object[]) o)
+				list.add(toMongo(oo, depth + 1));
 
-				return list;
-			}
+			return list;
+		}
 
-			if (o instanceof Map) {
-				Map< ? , ? > map = (Map< ? , ? >) o;
-				BasicDBObject dbo = new BasicDBObject();
-				for (Map.Entry< ? , ? > entry : map.entrySet()) {
-					String string = entry.getKey().toString();
+		if (o instanceof Map) {
+			Map< ? , ? > map = (Map< ? , ? >) o;
+			BasicDBObject dbo = new BasicDBObject();
+			for (Map.Entry< ? , ? > entry : map.entrySet()) {
+				String string = entry.getKey().toString();
 
-					dbo.put(string, toMongo(entry.getValue(), seenObjects));
-				}
-				return map;
+				dbo.put(string, toMongo(entry.getValue(), depth + 1));
 			}
+			return map;
+		}
 
-			Field[] fs = o.getClass().getFields();
-			if (fs.length > 0) {
-				BasicDBObject dbo = new BasicDBObject();
-				boolean flag = false;
-				for (Field f : fs) {
-					if(!Modifier.isStatic(f.getModifiers())) {
-						flag = true;
-						Object value = toMongo(f.get(o), seenObjects);
-						if (value != null)
-							dbo.put(f.getName(), value);
-					}	
-				}
-				if(flag) {
-					return dbo;
-				}
-			}
-			return o.toString();
+		ClassCodec codec = codec(o.getClass());
+		if (codec.isDocument())
+			return codec.encode(o, depth);
+
+		return o.toString();
+	}
 
-		} finally {
-			seenObjects.remove(o);
+	/**
+	 * @return the plan to encode and decode the given class, built on first
+	 *         use
+	 */
+	ClassCodec codec(Class< ? > type) {
+		ClassCodec codec = codecs.get(type);
+		if (codec == null) {
+			codec = new ClassCodec(this, type);
+			ClassCodec previous = codecs.putIfAbsent(type, codec);
+			if (previous != null)
+				codec = previous;
 		}
-		
+		return codec;
 	}
 
 	Object fromMongo(Type type, DBObject o) throws Exception {
+		if (type instanceof Class && o instanceof BasicDBObject) {
+			ClassCodec codec = codec((Class< ? >) type);
+			if (codec.isDecodable())
+				return codec.decode(o);
+		}
 		return converter.convert(type, o);
 	}
 
@@ -2,26 +2,36 @@ package org.bndtools.rt.store.mongo;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.bndtools.service.store.Cursor;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
 
 import aQute.lib.converter.Converter;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 
@@ -33,6 +43,7 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 	}
 
 	static DBObject			EMPTY		= new BasicDBObject();
+	static DBObject			TEXT_SCORE	= new BasicDBObject("$meta", "textScore");
 	static Converter		converter	= new Converter();
 	final MongoStoreImpl<T>	store;
 	DBObject				where;
@@ -41,7 +52,13 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 	DBObject				update;
 	int						skip;
 	int						limit;
+	int						batchSize;
+	DBObject				lastSeen;
 	boolean					optimistic;
+	// Class of the projections returned instead of the documents, or null
+	Class< ? >				projection;
+	// True if the documents are selected by the text index
+	boolean					search;
 	T						optimisticDocument;
 	
 	public MongoCursorImpl(MongoStoreImpl<T> store) {
@@ -84,6 +101,26 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 		return this;
 	}
 
+	@SuppressWarnings("unchecked")
+	public <P> MongoCursorImpl<P> select(Class<P> type, String... keys) {
+		if (keys.length == 0) {
+			List<String> names = new ArrayList<String>();
+			if (type.isInterface()) {
+				for (Method m : type.getMethods()) {
+					if (m.getParameterTypes().length == 0)
+						names.add(m.getName());
+				}
+			} else {
+				for (ClassCodec.Property p : store.mcnv.codec(type).properties)
+					names.add(p.name);
+			}
+			keys = names.toArray(new String[names.size()]);
+		}
+		select(keys);
+		projection = type;
+		return (MongoCursorImpl<P>) (MongoCursorImpl< ? >) this;
+	}
+
 	public MongoCursorImpl<T> slice(String key, int count) {
 		if (select == null)
 			select = new BasicDBObject();
@@ -99,6 +136,20 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 		return this;
 	}
 
+	public MongoCursorImpl<T> after(T lastSeen) throws Exception {
+		store.filter(lastSeen); // Verification that the document has an _id
+		this.lastSeen = (DBObject) store.mcnv.toMongo(lastSeen);
+		return this;
+	}
+
+	public MongoCursorImpl<T> batchSize(int batchSize) {
+		if (batchSize < 0) {
+			throw new IllegalArgumentException("Batch size should be a positive integer");
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
 	public MongoCursorImpl<T> skip(int skip) {
 		this.skip = skip;
 		return this;
@@ -130,22 +181,8 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 				return cursor.hasNext();
 			}
 
-			@SuppressWarnings("unchecked")
 			public T next() {
-				DBObject object = cursor.next();
-				// object contains the document + the version field
-				int version = (Integer) object.get("__version");
-				object.removeField("__version");
-				object.removeField("__keywords");
-				try {
-					T document = (T) store.mcnv.fromMongo(store.type, object);
-					store.versions.put(document, version);
-					return document;
-				}
-				catch (Exception e) {
-					e.printStackTrace();
-					throw new RuntimeException(e);
-				}
+				return decode(cursor.next());
 			}
 
 			public void remove() {
@@ -154,6 +191,62 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 		};
 	}
 
+	/**
+	 * Converts a document fetched from the database, and records its version.
+	 * Projections have no version.
+	 */
+	@SuppressWarnings("unchecked")
+	T decode(DBObject object) {
+		if (object instanceof DocumentObject) {
+			DocumentObject decoded = (DocumentObject) object;
+			T document = (T) decoded.document;
+			if (projection == null && decoded.version != null)
+				store.versions.put(document, decoded.version);
+			return document;
+		}
+
+		object.removeField("__score");
+		if (projection != null) {
+			object.removeField("__version");
+			object.removeField("__keywords");
+			try {
+				return (T) store.mcnv.fromMongo(projection, strip(object));
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		// object contains the document + the version field, unless it was
+		// written without one: its version is then unknown
+		Object version = object.removeField("__version");
+		object.removeField("__keywords");
+		try {
+			T document = (T) store.mcnv.fromMongo(store.type, object);
+			if (version != null)
+				store.versions.put(document, ((Number) version).intValue());
+			return document;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Removes the fields a projection class has no place for
+	 */
+	private DBObject strip(DBObject object) {
+		ClassCodec codec = store.mcnv.codec(projection);
+		if (codec.isDocument() && codec.extra == null) {
+			for (String key : new ArrayList<String>(object.keySet())) {
+				if (!codec.byName.containsKey(key))
+					object.removeField(key);
+			}
+		}
+		return object;
+	}
+
 	public List< ? > distinct(String field) throws Exception {
 		assert skip == 0;
 		assert limit == 0;
@@ -185,21 +278,36 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 		return result;
 	}
 
-	private DBCursor getDBCursor() {
+	/**
+	 * Returns a driver cursor streaming the documents: they are fetched by
+	 * batches of {@link #batchSize} as the cursor is iterated, so that all the
+	 * documents can be read in constant memory.
+	 */
+	DBCursor getDBCursor() {
 		if(select != null)
 			select.put("__version", 1); // Forced retrieval of __version
 		
-		final DBCursor cursor = store.collection.find(where, select);
+		DBObject fields = select;
+		if (search) {
+			// Required to sort on the relevance
+			fields = select == null ? new BasicDBObject() : new BasicDBObject(select.toMap());
+			fields.put("__score", TEXT_SCORE);
+		}
+		final DBCursor cursor = store.collection.find(query(), fields);
+		decoder(cursor, Collections.<String> emptySet());
 		if (limit != 0)
 			cursor.limit(limit);
-		else
-			cursor.limit(100);
+		if (batchSize != 0)
+			cursor.batchSize(batchSize);
 
 		if (skip != 0)
 			cursor.skip(skip);
-		if (sort != null) {
-			cursor.sort(sort);
-		}
+		DBObject order = lastSeen != null ? keyset() : sort;
+		if (order == null && search)
+			order = new BasicDBObject("__score", TEXT_SCORE);
+		if (order != null)
+			cursor.sort(order);
+		advise(query(), order);
 		// System.out.println(where);
 		return cursor;
 	}
@@ -306,17 +414,28 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 		o.put(field, value);
 	}
 
+	/**
+	 * An optimistic update only matches the document if it still has the
+	 * version the document had when it was last read or written, then records
+	 * the new version, so that the document can be updated again.
+	 */
 	public int update() throws Exception {
+		Integer version = null;
 		if(optimistic) {
-			where.put("__version", store.mcnv.toMongo(store.versions.get(optimisticDocument)));
+			version = store.versions.get(optimisticDocument);
+			if (version == null)
+				throw new IllegalStateException("The version of the document is unknown, it must be read from or written to the store first");
+			where.put("__version", version);
 		}
 		inc("__version", 1);
 		
 
 		WriteResult result = store.collection.update(where, update, false, !optimistic);
 		store.error(result);
-		if(optimistic && result.getN() == 0) {
-			throw new ConcurrentModificationException("Document was modified after obtention");
+		if(optimistic) {
+			if (result.getN() == 0)
+				throw new ConcurrentModificationException("Document was modified after obtention");
+			store.versions.replace(optimisticDocument, version, version + 1);
 		}
 		return result.getN();
 	}
@@ -405,25 +524,288 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 	static int	BATCH_SIZE	= 200;
 
 	/**
-	 * Visits the caller so that we can batch the selection.
+	 * Visits the documents by pages of {@link #BATCH_SIZE}, or of the batch
+	 * size if set. The documents are ordered by the sort fields then by _id,
+	 * and every page starts right after the last document of the previous
+	 * one, with a range predicate on these fields rather than a skip, so that
+	 * visiting all the documents takes linear time and no cursor stays open
+	 * on the server while the visitor runs. A page that ends on an array,
+	 * which can not start a range, is followed by skipping the documents
+	 * visited since the last range.
 	 */
 	@Override
 	public boolean visit(Visitor<T> visitor) throws Exception {
-		int i = 0;
+		DBObject order = keyset();
+		DBObject projection = projection(order);
+		int size = batchSize != 0 ? batchSize : BATCH_SIZE;
+		int remaining = limit;
+		int skipped = skip;
+		DBObject after = lastSeen == null ? null : afterLastSeen(order);
+		// The keys of the last document of a page start the next page
+		Set<String> keep = new HashSet<String>();
+		for (String key : order.keySet())
+			keep.add(key.split("\\.")[0]);
+		advise(and(where, after), order);
 		while (true) {
-			limit(BATCH_SIZE);
-			int n = 0;
-			for (T t : this) {
-				if (!visitor.visit(t))
-					return false;
+			int page = remaining == 0 ? size : Math.min(size, remaining);
+			DBCursor cursor = store.collection.find(and(where, after), projection).sort(order).limit(page);
+			decoder(cursor, keep);
+			if (skipped != 0)
+				cursor.skip(skipped);
 
-				n++;
+			int n = 0;
+			DBObject last = null;
+			try {
+				while (cursor.hasNext()) {
+					last = cursor.next();
+					n++;
+					if (!visitor.visit(decode(last)))
+						return false;
+				}
+			}
+			finally {
+				cursor.close();
 			}
-			if (n != BATCH_SIZE)
+
+			if (n < page)
+				return true;
+			if (remaining != 0 && (remaining -= n) == 0)
 				return true;
+			DBObject next = after(order, last, store.mcnv.codec(store.type));
+			if (next != null) {
+				after = next;
+				skipped = 0;
+			} else
+				skipped += n;
+		}
+	}
+
+	public MongoAsyncCursorImpl<T> async() {
+		return new MongoAsyncCursorImpl<T>(this);
+	}
+
+	/**
+	 * Reports the query to the index advisor, if enabled
+	 */
+	private void advise(DBObject query, DBObject order) {
+		IndexAdvisor advisor = store.handler.advisor;
+		if (advisor != null)
+			advisor.advise(store.collection, query, order);
+	}
+
+	/**
+	 * Reads the documents straight into their fields
+	 */
+	private void decoder(DBCursor cursor, Set<String> keep) {
+		DBDecoderFactory decoder = projection == null ? store.decoder(keep) : store.decoder(projection, keep);
+		if (decoder != null)
+			cursor.setDecoderFactory(decoder);
+	}
+
+	/**
+	 * @return the selection, restricted to the documents after the last seen
+	 *         one if set
+	 */
+	DBObject query() {
+		if (lastSeen == null)
+			return where;
+		return and(where, afterLastSeen(keyset()));
+	}
+
+	/**
+	 * @return a predicate selecting the documents after the last seen one
+	 */
+	private DBObject afterLastSeen(DBObject order) {
+		DBObject after = after(order, lastSeen, store.mcnv.codec(store.type));
+		if (after == null)
+			throw new IllegalArgumentException("The documents can not be ordered after one with an array in a sort field: "
+					+ lastSeen);
+		return after;
+	}
+
+	/**
+	 * @return the sort fields, followed by _id if not sorted on it already, so
+	 *         that the order is total
+	 */
+	DBObject keyset() {
+		BasicDBObject order = new BasicDBObject();
+		if (sort != null)
+			order.putAll(sort);
+		if (!order.containsField("_id"))
+			order.put("_id", 1);
+		return order;
+	}
+
+	/**
+	 * @return the selected fields, including the fields of the order, or null
+	 *         if all the fields are selected
+	 */
+	DBObject projection(DBObject order) {
+		if (select == null)
+			return null;
+		BasicDBObject projection = new BasicDBObject(select.toMap());
+		projection.put("__version", 1);
+		for (String key : order.keySet()) {
+			if (!projection.containsField(key))
+				projection.put(key, 1);
+		}
+		return projection;
+	}
+
+	/**
+	 * The $type codes of the types that sort after null, grouped by the
+	 * brackets in which the server compares the values, in sort order:
+	 * numbers, strings, documents, binary data, object ids, booleans, dates,
+	 * timestamps and regular expressions. A range only matches the values of
+	 * its own bracket.
+	 */
+	static final int[][]	BRACKETS	= {
+			{1, 16, 18}, {2, 14}, {3}, {5}, {7}, {8}, {9}, {17}, {11}
+										};
+
+	/**
+	 * @return the index of the bracket of a non null value in
+	 *         {@link #BRACKETS}, or -1 if a range on the value does not follow
+	 *         the sort order, as for arrays which sort by one of their elements
+	 */
+	static int bracket(Object value) {
+		if (value instanceof Number)
+			return 0;
+		if (value instanceof String || value instanceof Symbol)
+			return 1;
+		if (value instanceof List || value.getClass().isArray() && !(value instanceof byte[]))
+			return -1;
+		if (value instanceof DBObject || value instanceof Map)
+			return 2;
+		if (value instanceof byte[] || value instanceof Binary || value instanceof UUID)
+			return 3;
+		if (value instanceof ObjectId)
+			return 4;
+		if (value instanceof Boolean)
+			return 5;
+		if (value instanceof Date)
+			return 6;
+		if (value instanceof BSONTimestamp)
+			return 7;
+		if (value instanceof Pattern)
+			return 8;
+		return -1;
+	}
+
+	/**
+	 * @return the bracket of all the values of a field declared with a scalar
+	 *         type in the document class, or -1 if the field may hold values of
+	 *         several brackets, as an Object field or a nested field
+	 */
+	static int bracket(ClassCodec codec, String key) {
+		ClassCodec.Property p = codec == null ? null : codec.byName.get(key);
+		if (p == null)
+			return -1;
+		switch (p.kind) {
+			case ClassCodec.STRING :
+			case ClassCodec.CHAR :
+				return 1;
+			case ClassCodec.BOOLEAN :
+				return 5;
+			case ClassCodec.OBJECT :
+				return p.field.getType() == byte[].class ? 3 : -1;
+			case ClassCodec.LIST :
+				return -1;
+			default :
+				return 0;
+		}
+	}
+
+	/**
+	 * @return true if a field may be null or missing
+	 */
+	static boolean nullable(ClassCodec codec, String key) {
+		ClassCodec.Property p = codec == null ? null : codec.byName.get(key);
+		return p == null || !key.equals("_id") && !p.field.getType().isPrimitive();
+	}
+
+	/**
+	 * @return a predicate selecting the documents after the given one in the
+	 *         given order: after it on the first field, or equal on the first
+	 *         field and after it on the second one, etc. A value is after
+	 *         another one if it is greater in the same bracket or of a type
+	 *         that sorts after, null and missing fields sorting first. A field
+	 *         declared with a scalar type only holds values of its bracket, so
+	 *         it gets a single range, which the server can walk on an index
+	 *         even under an $or; the other fields also match the types that
+	 *         sort after. Null if a field of the document is an array.
+	 */
+	static DBObject after(DBObject order, DBObject last, ClassCodec codec) {
+		List<String> keys = new ArrayList<String>(order.keySet());
+		BasicDBList or = new BasicDBList();
+		// A range on the first field, implied by all the branches
+		BasicDBObject bound = null;
+		for (int j = 0; j < keys.size(); j++) {
+			String key = keys.get(j);
+			Object value = value(last, key);
+			boolean descending = ((Number) order.get(key)).intValue() < 0;
+			List<Object> after = new ArrayList<Object>();
+			if (value == null) {
+				if (!descending)
+					after.add(new BasicDBObject("$ne", null));
+			} else {
+				int bracket = bracket(value);
+				if (bracket < 0)
+					return null;
+				after.add(new BasicDBObject(descending ? "$lt" : "$gt", value));
+				if (bracket == bracket(codec, key)) {
+					boolean nullable = nullable(codec, key);
+					if (descending && nullable)
+						after.add(null);
+					if (j == 0 && !(descending && nullable))
+						bound = new BasicDBObject(descending ? "$lte" : "$gte", value);
+				} else if (descending) {
+					// Matches the missing fields too
+					after.add(null);
+					for (int b = 0; b < bracket; b++)
+						for (int type : BRACKETS[b])
+							after.add(new BasicDBObject("$type", type));
+				} else {
+					for (int b = bracket + 1; b < BRACKETS.length; b++)
+						for (int type : BRACKETS[b])
+							after.add(new BasicDBObject("$type", type));
+				}
+			}
+			for (Object predicate : after) {
+				BasicDBObject clause = new BasicDBObject();
+				for (int i = 0; i < j; i++)
+					clause.put(keys.get(i), value(last, keys.get(i)));
+				clause.put(key, predicate);
+				or.add(clause);
+			}
+		}
+		if (or.size() == 1)
+			return (DBObject) or.get(0);
+		BasicDBObject after = new BasicDBObject("$or", or);
+		if (bound != null)
+			after.put(keys.get(0), bound);
+		return after;
+	}
 
-			skip(BATCH_SIZE * ++i);
+	/**
+	 * @return the value of a field of the document, possibly nested with dots
+	 */
+	static Object value(DBObject document, String key) {
+		Object value = document;
+		for (String part : key.split("\\.")) {
+			if (!(value instanceof DBObject))
+				return null;
+			value = ((DBObject) value).get(part);
 		}
+		return value;
+	}
+
+	static DBObject and(DBObject where, DBObject after) {
+		if (after == null)
+			return where;
+		if (where == null)
+			return after;
+		return new BasicDBObject("$and", Arrays.asList(where, after));
 	}
 
 	/**
@@ -431,6 +813,7 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 	 */
 	@Override
 	public Cursor<T> text(String text) throws Exception {
+		store.indexKeywords();
 		Search search = new Search();
 		search.addAll(text);
 		appendAll("__keywords", search.set());
@@ -443,6 +826,7 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 	 */
 	@Override
 	public Cursor<T> word(String word) throws Exception {
+		store.indexKeywords();
 		Search search = new Search();
 		search.add(word);
 		for (String s : search.set())
@@ -489,12 +873,61 @@ public class MongoCursorImpl<T> implements Cursor<T> {
 					positive.addAll(p);
 			}
 		}
-		for (String key : positive.set()) {
-			where("__keywords=%s", key);
-		}
-		for (String key : negative.set()) {
-			where("(!(__keywords=%s)", key);
+		keywords(positive.set(), negative.set());
+		return this;
+	}
+
+	/**
+	 * Searches the text index of the keywords, or falls back to matching the
+	 * keywords. The words of the query are tokenized like the texts, so that
+	 * the server stems the same words. A document must have all the positive
+	 * words: $text would match any of them, so several words are quoted,
+	 * which the server matches without stemming. A query without positive
+	 * words can not be answered by $text and matches the keywords.
+	 */
+	@Override
+	public MongoCursorImpl<T> search(String q) throws Exception {
+		Search positive = new Search();
+		Search negative = new Search();
+		for (String p : q.split("\\s+")) {
+			if (p.startsWith("-"))
+				negative.addAll(p);
+			else
+				positive.addAll(p);
 		}
+		if (positive.set().isEmpty() || !store.isTextIndexed())
+			return keywords(positive.set(), negative.set());
+
+		store.indexKeywords();
+		boolean quote = positive.set().size() > 1;
+		StringBuilder sb = new StringBuilder();
+		for (String word : positive.set())
+			if (quote)
+				sb.append('"').append(word).append("\" ");
+			else
+				sb.append(word).append(' ');
+		for (String word : negative.set())
+			sb.append('-').append(word).append(' ');
+		combine("$and", new BasicDBObject("$text", new BasicDBObject("$search", sb.toString().trim())));
+		search = true;
+		return this;
+	}
+
+	/**
+	 * Selects the documents with all the positive keywords and none of the
+	 * negative ones, with a single clause.
+	 */
+	private MongoCursorImpl<T> keywords(Set<String> positive, Set<String> negative) {
+		if (positive.isEmpty() && negative.isEmpty())
+			return this;
+
+		store.indexKeywords();
+		BasicDBObject match = new BasicDBObject();
+		if (!positive.isEmpty())
+			match.put("$all", new ArrayList<String>(positive));
+		if (!negative.isEmpty())
+			match.put("$nin", new ArrayList<String>(negative));
+		combine("$and", new BasicDBObject("__keywords", match));
 		return this;
 	}
 
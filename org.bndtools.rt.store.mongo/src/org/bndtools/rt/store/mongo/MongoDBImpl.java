@@ -1,6 +1,17 @@
 package org.bndtools.rt.store.mongo;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bndtools.rt.store.mongo.MongoDBImpl.Config;
 import org.osgi.service.log.LogService;
@@ -22,9 +33,15 @@ import com.mongodb.Mongo;
  */
 @Component(configurationPolicy = ConfigurationPolicy.require, designateFactory = Config.class)
 public class MongoDBImpl implements org.bndtools.service.store.DB {
-	Mongo		mongo;
-	DB			db;
-	LogService	log = null;
+	Mongo			mongo;
+	DB				db;
+	LogService		log = null;
+	// Runs the asynchronous operations of the stores, created on first use
+	ExecutorService	executor;
+	// Null unless enabled
+	IndexAdvisor	advisor;
+	// Null until the server is asked
+	Boolean			textSearch;
 
 	public interface Config {
 		/**
@@ -59,6 +76,18 @@ public class MongoDBImpl implements org.bndtools.service.store.DB {
 		 */
 		String _password(); // pl: why "_"
 
+		/**
+		 * Log the queries of the cursors answered without an index or sorted
+		 * in memory, see {@link IndexAdvisor}
+		 */
+		boolean indexAdvisor();
+
+		/**
+		 * With the index advisor, also log the queries taking at least this
+		 * number of milliseconds, if not 0
+		 */
+		long slowQuery();
+
 	};
 
 	Config	config;
@@ -70,6 +99,8 @@ public class MongoDBImpl implements org.bndtools.service.store.DB {
 	@Activate
 	void activate(Map<String,Object> properties) throws Exception {
 		config = Converter.cnv(Config.class, properties);
+		if (config.indexAdvisor())
+			advisor = new IndexAdvisor(this, config.slowQuery());
 
 		// Get the host
 		if (config.host() != null && config.host().length() > 1) {
@@ -104,9 +135,91 @@ public class MongoDBImpl implements org.bndtools.service.store.DB {
 	 */
 	@Deactivate
 	void deactivate() {
+		List<Runnable> dropped = Collections.emptyList();
+		synchronized (this) {
+			if (executor != null)
+				dropped = executor.shutdownNow();
+		}
+		for (Runnable r : dropped)
+			if (r instanceof Task)
+				((Task) r).abort(new RejectedExecutionException("The database " + db.getName() + " is closed"));
 		mongo.close();
 	}
 
+	/**
+	 * A task of the {@link #executor()} that must be told when it is dropped
+	 * because the database closes before it runs.
+	 */
+	interface Task extends Runnable {
+		void abort(Throwable reason);
+	}
+
+	/**
+	 * The driver blocks until the database answers, so the asynchronous
+	 * operations run on a pool with one thread per connection of the driver
+	 * pool: more threads would only wait for a connection.
+	 */
+	synchronized Executor executor() {
+		if (executor == null) {
+			final String name = "mongo-" + db.getName() + "-";
+			final AtomicInteger n = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(mongo.getMongoOptions().connectionsPerHost, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name + n.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs a blocking operation on the {@link #executor()}.
+	 * 
+	 * @return a stage completed with the result of the operation
+	 */
+	<R> CompletionStage<R> submit(final Callable<R> operation) {
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		try {
+			executor().execute(new Task() {
+				public void run() {
+					try {
+						result.complete(operation.call());
+					}
+					catch (Throwable t) {
+						result.completeExceptionally(t);
+					}
+				}
+
+				public void abort(Throwable reason) {
+					result.completeExceptionally(reason);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the server answers $text queries, from version 2.6
+	 */
+	synchronized boolean isTextSearch() {
+		if (textSearch == null) {
+			List< ? > version = (List< ? >) db.command("buildInfo").get("versionArray");
+			if (version == null || version.size() < 2)
+				textSearch = false;
+			else {
+				int major = ((Number) version.get(0)).intValue();
+				int minor = ((Number) version.get(1)).intValue();
+				textSearch = major > 2 || major == 2 && minor >= 6;
+			}
+		}
+		return textSearch;
+	}
+
 	public <T> MongoStoreImpl<T> getStore(Class<T> clazz, String name) throws Exception {
 		return new MongoStoreImpl<T>(this, clazz, db.getCollection(name));
 	}
@@ -5,11 +5,13 @@ import java.lang.reflect.*;
 import java.util.*;
 import java.util.regex.*;
 
+import org.bndtools.service.store.BatchResult;
 import org.bndtools.service.store.Cursor;
+import org.bndtools.service.store.Index;
 import org.bndtools.service.store.Store;
 import org.bson.types.*;
 
-import aQute.lib.base64.*;
+import aQute.lib.base64.Base64;
 import aQute.lib.hex.*;
 
 import com.mongodb.*;
@@ -19,15 +21,32 @@ public class MongoStoreImpl<T> implements Store<T> {
 	final static Pattern	BINARY_PATTERN	= Pattern
 													.compile("\\[h((?:[a-fA-f0-9][a-fA-f0-9])+)]|\\[b([a-zA-Z0-9+/]+={0,2})]");
 	final static Pattern	SIMPLE_EXPR		= Pattern.compile("([^=><~*]+)\\s*(=|<=|>=|>|<|~=)\\s*([^\\s]+)");
+	final static DBObject	VERSION_ONLY	= new BasicDBObject("__version", 1);
+	final static int		FILTER_CACHE_SIZE	= 256;
+	final static DBObject	KEYWORDS_INDEX	= new BasicDBObject("__keywords", 1);
+	final static DBObject	TEXT_INDEX		= new BasicDBObject("__keywords", "text");
+	// The documents may have their own language field
+	final static DBObject	TEXT_OPTIONS	= new BasicDBObject("language_override", "__language");
 	final MongoDBImpl		handler;
 	final Class<T>			type;
 	final DBCollection		collection;
 	GridFS					gridfs;
+	// Null until the indexes of the collection are checked
+	Boolean					textIndex;
 	final Field				_id;
 	final ArrayList<Field>	fields 			= new ArrayList<Field>();
 	final MongoCodec		mcnv			= new MongoCodec(this);
 	
-	final WeakHashMap<T, Integer> versions = new WeakHashMap<T, Integer>();
+	final Versions			versions		= new Versions();
+
+	// Compiled filters by template, least recently used evicted first
+	@SuppressWarnings("serial")
+	final Map<String,LdapFilter> filters = new LinkedHashMap<String,LdapFilter>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,LdapFilter> eldest) {
+			return size() > FILTER_CACHE_SIZE;
+		}
+	};
 	/**
 	 *  
 	 * @param handler: A database connection
@@ -52,6 +71,16 @@ public class MongoStoreImpl<T> implements Store<T> {
 			throw new IllegalArgumentException("No _id field, required");
 
 		_id = tmp;
+
+		for (Field f : fields) {
+			Index index = f.getAnnotation(Index.class);
+			if (index != null) {
+				if (index.unique())
+					unique(f.getName());
+				else
+					index(f.getName());
+			}
+		}
 	}
 
 	/**
@@ -69,10 +98,10 @@ public class MongoStoreImpl<T> implements Store<T> {
 		if (key == null) {
 			attributeID(document);
 		}
-		DBObject o = (DBObject) mcnv.toMongo(document);
-		o.put("__version", 0);
 		try {
-			WriteResult result = collection.insert(o);
+			WriteResult result = collection.insert(new DBObject[] {
+				document(document, 0)
+			}, collection.getWriteConcern(), new DocumentEncoder(mcnv));
 			CommandResult lastError = result.getLastError();
 
 			if (lastError != null) {
@@ -95,7 +124,7 @@ public class MongoStoreImpl<T> implements Store<T> {
 	 * @param document Document for which an ID is needed
 	 * @throws Exception 
 	 */
-	private void attributeID(T document) throws Exception {
+	void attributeID(T document) throws Exception {
 		if (_id.getType() == byte[].class)
 			_id.set(document, ObjectId.get().toByteArray());
 		else if (_id.getType() == String.class)
@@ -108,10 +137,6 @@ public class MongoStoreImpl<T> implements Store<T> {
 
 	public void update(T document, String... fieldNames) throws Exception {
 		MongoCursorImpl<T> cursor = find(document);
-		if(cursor.count() == 0) {
-			throw new IllegalArgumentException("No corresponding document in the database");
-		}
-		
 		if (fieldNames == null || fieldNames.length == 0) {
 			for (Field field : fields) {
 				if(field.getName() != "_id")
@@ -124,18 +149,148 @@ public class MongoStoreImpl<T> implements Store<T> {
 				cursor.set(fieldName, field.get(document));
 			}
 		}
-		cursor.update();
+		if (cursor.update() == 0) {
+			throw new IllegalArgumentException("No corresponding document in the database");
+		}
 	}
 
+	/**
+	 * Upserts the document with a single round trip: a findAndModify replacing
+	 * the fields of the stored document, or creating it, and returning its new
+	 * version. A document created this way starts at version 1.
+	 */
 	public void upsert(T document) throws Exception {
-		if(_id.get(document) == null || find(document).count() == 0) {
+		if (_id.get(document) == null) {
 			insert(document);
-		} else {
-			update(document);
+			return;
+		}
+		DBObject result = collection.findAndModify(filter(document), VERSION_ONLY, null, false, replace(document),
+				true, true);
+		versions.put(document, ((Number) result.get("__version")).intValue());
+	}
+
+	/**
+	 * @return the document as written to the database, see
+	 *         {@link DocumentEncoder}
+	 */
+	DBObject document(T document, int version) {
+		return new DocumentObject(document, mcnv.codec(type), version, null);
+	}
+
+	/**
+	 * @param keep
+	 *            Top level keys the cursor needs as DBObjects, see
+	 *            {@link DocumentDecoder}
+	 * @return the factory of the decoders reading the documents straight into
+	 *         their fields, or null if the type must be decoded from
+	 *         DBObjects
+	 */
+	DBDecoderFactory decoder(Set<String> keep) {
+		ClassCodec codec = mcnv.codec(type);
+		if (!codec.isDecodable())
+			return null;
+		return DocumentDecoder.factory(codec, keep, false);
+	}
+
+	/**
+	 * @return the factory of the decoders reading projections of the
+	 *         documents, or null if the projections cannot be read by a plan
+	 */
+	DBDecoderFactory decoder(Class< ? > projection, Set<String> keep) {
+		ClassCodec codec = mcnv.codec(projection);
+		if (!codec.isDecodable())
+			return null;
+		return DocumentDecoder.factory(codec, keep, true);
+	}
+
+	/**
+	 * @return the update replacing every field of the stored document but its
+	 *         _id, and incrementing its version
+	 */
+	DBObject replace(T document) throws Exception {
+		BasicDBObject set = new BasicDBObject();
+		for (Field field : fields) {
+			if (!field.getName().equals("_id"))
+				set.put(field.getName(), mcnv.toMongo(field.get(document)));
+		}
+		return new BasicDBObject("$set", set).append("$inc", new BasicDBObject("__version", 1));
+	}
+
+	public BatchResult<T> insertAll(Collection< ? extends T> documents) throws Exception {
+		return batch().insertAll(documents);
+	}
+
+	public BatchResult<T> upsertAll(Collection< ? extends T> documents) throws Exception {
+		return batch().upsertAll(documents);
+	}
+
+	public MongoBatchImpl<T> batch() {
+		return new MongoBatchImpl<T>(this);
+	}
+
+	public MongoAsyncStoreImpl<T> async() {
+		return new MongoAsyncStoreImpl<T>(this);
+	}
+
+	/**
+	 * The driver remembers the indexes it created, so that ensuring an
+	 * existing index again costs no round trip.
+	 */
+	public MongoStoreImpl<T> index(String... keys) throws Exception {
+		collection.ensureIndex(keys(keys));
+		return this;
+	}
+
+	public MongoStoreImpl<T> unique(String... keys) throws Exception {
+		collection.ensureIndex(keys(keys), new BasicDBObject("unique", true));
+		return this;
+	}
+
+	private DBObject keys(String... keys) {
+		if (keys.length == 0)
+			throw new IllegalArgumentException("An index needs at least one field");
+		BasicDBObject index = new BasicDBObject();
+		for (String key : keys) {
+			if (key.startsWith("-"))
+				index.put(key.substring(1), -1);
+			else
+				index.put(key, 1);
 		}
-		if(find(document).count() == 0) {
-			
+		return index;
+	}
+
+	/**
+	 * Indexes the keywords set by {@link Cursor#word(String)} and
+	 * {@link Cursor#text(String)}, before they are written or queried. They
+	 * also get a text index when the server can search it, see
+	 * {@link Cursor#search(String)}.
+	 */
+	void indexKeywords() {
+		collection.ensureIndex(KEYWORDS_INDEX);
+		isTextIndexed();
+	}
+
+	/**
+	 * A collection has at most one text index. The keywords get one unless
+	 * the collection already has its own, then searches match the keywords.
+	 * 
+	 * @return true if the keywords have a text index
+	 */
+	synchronized boolean isTextIndexed() {
+		if (textIndex == null) {
+			textIndex = false;
+			if (handler.isTextSearch()) {
+				for (DBObject index : collection.getIndexInfo()) {
+					// Only text indexes have weights
+					DBObject weights = (DBObject) index.get("weights");
+					if (weights != null)
+						return textIndex = weights.keySet().equals(Collections.singleton("__keywords"));
+				}
+				collection.ensureIndex(TEXT_INDEX, TEXT_OPTIONS);
+				textIndex = true;
+			}
 		}
+		return textIndex;
 	}
 
 	public MongoCursorImpl<T> all() throws Exception {
@@ -158,7 +313,8 @@ public class MongoStoreImpl<T> implements Store<T> {
 	}
 
 	/**
-	 * Create a filter out of an LDAP expression.
+	 * Create a filter out of an LDAP expression. The expression is a format
+	 * template compiled once, see {@link LdapFilter}.
 	 * 
 	 * @param where
 	 * @param ldap
@@ -166,122 +322,62 @@ public class MongoStoreImpl<T> implements Store<T> {
 	 * @throws Exception
 	 */
 	DBObject filter(String ldap, Object... args) throws Exception {
-
-		for (int i = 0; i < args.length; i++) {
-			if (args[i] instanceof byte[])
-				args[i] = "[h" + Hex.toHexString((byte[]) args[i]) + "]";
-
-			// TODO more conversions?
+		LdapFilter filter;
+		synchronized (filters) {
+			filter = filters.get(ldap);
 		}
-		String formatted = String.format(ldap, args);
-		if (!formatted.startsWith("("))
-			formatted = "(" + formatted + ")";
-
-		Reader r = new StringReader(formatted);
-		return expr(r, r.read());
+		if (filter == null) {
+			filter = LdapFilter.compile(ldap);
+			synchronized (filters) {
+				filters.put(ldap, filter);
+			}
+		}
+		return filter.bind(this, args);
 	}
 
-	private DBObject expr(Reader ldap, int c) throws Exception {
-		while (Character.isWhitespace(c))
-			c = ldap.read();
-
-		assert c == '(';
+	/**
+	 * Create the query of a simple LDAP expression.
+	 * 
+	 * @param regex
+	 *            true if the value contained wildcards, replaced by .*
+	 */
+	DBObject expr(String key, String op, String value, boolean regex) throws Exception {
 		DBObject query = new BasicDBObject();
-
-		do {
-			c = ldap.read();
-		} while (Character.isWhitespace(c));
-
-		switch (c) {
-			case '&' : {
-				List<DBObject> exprs = exprs(ldap);
-				query.put("$and", exprs);
-				break;
+		if (op.equals("=")) {
+			if (".*".equals(value))
+				query.put(key, new BasicDBObject("$exists", true));
+			else if ("[]".equals(value)) {
+				query.put(key, Collections.EMPTY_LIST);
+			} else {
+				Matcher matcher = BINARY_PATTERN.matcher(value);
+				if (matcher.matches()) {
+					if (matcher.group(2) != null) // [b matched
+						query.put(key, Base64.decodeBase64(matcher.group(2)));
+					else
+						// [h matched
+						query.put(key, Hex.toByteArray(matcher.group(1)));
+				} else if (regex) {
+					query.put(key, new BasicDBObject("$regex", "^" + value));
+					// TODO ensure valid regex for value
+				} else
+					query.put(key, fromBson(key, value));
 			}
+		} else if (op.equals(">"))
+			query.put(key, new BasicDBObject("$gt", fromBson(key, value)));
+		else if (op.equals(">="))
+			query.put(key, new BasicDBObject("$gte", fromBson(key, value)));
+		else if (op.equals("<"))
+			query.put(key, new BasicDBObject("$lt", fromBson(key, value)));
+		else if (op.equals("<="))
+			query.put(key, new BasicDBObject("$lte", fromBson(key, value)));
+		else if (op.equals("~="))
+			query.put(key, new BasicDBObject("$regex", fromBson(key, value)).append("$options", "i"));
+		// TODO ensure valid regex for value
+		else
+			throw new IllegalArgumentException("Unknown operator " + op);
 
-			case '|' : {
-				List<DBObject> exprs = exprs(ldap);
-				query.put("$or", exprs);
-				break;
-			}
-
-			case '!' : {
-				List<DBObject> exprs = exprs(ldap);
-				query.put("$nor", exprs);
-				break;
-			}
-
-			case -1 :
-				throw new EOFException();
-
-			default :
-				while (Character.isWhitespace(c))
-					c = ldap.read();
-
-				StringBuilder sb = new StringBuilder();
-				boolean regex = false;
-
-				while (true) {
-					if (c < 0)
-						throw new EOFException();
-
-					if (c == '\\') {
-						c = ldap.read();
-						if (c < 0)
-							throw new EOFException();
-					} else if (c == '*') {
-						regex = true;
-						sb.append(".");
-					} else if (c == ')')
-						break;
-
-					sb.append((char) c);
-					c = ldap.read();
-				}
-				Matcher m = SIMPLE_EXPR.matcher(sb);
-				if (!m.matches())
-					throw new IllegalArgumentException("Not a valid LDAP expression " + sb);
-
-				String key = m.group(1);
-				String op = m.group(2);
-				String value = m.group(3);
-
-				if (op.equals("=")) {
-					if (".*".equals(value))
-						query.put(key, new BasicDBObject("$exists", true));
-					else if ("[]".equals(value)) {
-						query.put(key, Collections.EMPTY_LIST);
-					} else {
-						Matcher matcher = BINARY_PATTERN.matcher(value);
-						if (matcher.matches()) {
-							if (matcher.group(2) != null) // [b matched
-								query.put(key, Base64.decodeBase64(matcher.group(2)));
-							else
-								// [h matched
-								query.put(key, Hex.toByteArray(matcher.group(1)));
-						} else if (regex) {
-							query.put(key, new BasicDBObject("$regex", "^" + value));
-							// TODO ensure valid regex for value
-						} else
-							query.put(key, fromBson(key, value));
-					}
-				} else if (op.equals(">"))
-					query.put(key, new BasicDBObject("$gt", fromBson(key, value)));
-				else if (op.equals(">="))
-					query.put(key, new BasicDBObject("$gte", fromBson(key, value)));
-				else if (op.equals("<"))
-					query.put(key, new BasicDBObject("$lt", fromBson(key, value)));
-				else if (op.equals("<="))
-					query.put(key, new BasicDBObject("$lte", fromBson(key, value)));
-				else if (op.equals("~="))
-					query.put(key, new BasicDBObject("$regex", fromBson(key, value)).append("$options", "i"));
-				// TODO ensure valid regex for value
-				else
-					throw new IllegalArgumentException("Unknown operator " + op);
-
-				// TODO optimize by recognizing patterns that map to better
-				// operators
-		}
+		// TODO optimize by recognizing patterns that map to better
+		// operators
 		return query;
 	}
 
@@ -325,22 +421,6 @@ public class MongoStoreImpl<T> implements Store<T> {
 			return result;
 	}
 
-	private List<DBObject> exprs(Reader ldap) throws Exception {
-		int c;
-		do {
-			c = ldap.read();
-		} while (Character.isWhitespace(c));
-
-		List<DBObject> list = new ArrayList<DBObject>();
-		while (c == '(') {
-			list.add(expr(ldap, c));
-
-			// read ( for another or ) for close
-			c = ldap.read();
-		}
-		return list;
-	}
-
 	/**
 	 * Create a minimal {@link BasicDBObject} sufficient to uniquely
 	 * identify a document in the database.
@@ -390,7 +470,9 @@ public class MongoStoreImpl<T> implements Store<T> {
 	}
 
 	/**
-	 * TODO implement optimistic locking
+	 * The update of the returned cursor is a single write, conditioned on the
+	 * version the target had when it was last read or written through this
+	 * store.
 	 */
 	public Cursor<T> optimistic(T target) throws Exception {
 		return new MongoCursorImpl<T>(this, target, true);
@@ -0,0 +1,74 @@
+package org.bndtools.rt.store.mongo;
+
+import java.lang.ref.*;
+import java.util.concurrent.*;
+
+/**
+ * Versions of the documents read from or written to a store, for the
+ * optimistic locking. The documents are compared by identity, so that equal
+ * documents have their own versions and their equals and hashCode methods are
+ * never called, and weakly referenced, so that the versions go away with the
+ * documents. Thread safe.
+ */
+class Versions {
+	final ConcurrentMap<Key,Integer>	versions	= new ConcurrentHashMap<Key,Integer>();
+	final ReferenceQueue<Object>		collected	= new ReferenceQueue<Object>();
+
+	/**
+	 * A weak reference compared by the identity of its referent. The keys of
+	 * collected documents are only equal to themselves.
+	 */
+	static class Key extends WeakReference<Object> {
+		final int	hash;
+
+		Key(Object document, ReferenceQueue<Object> queue) {
+			super(document, queue);
+			this.hash = System.identityHashCode(document);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Object document = get();
+			return document != null && document == ((Key) o).get();
+		}
+	}
+
+	/**
+	 * @return the version of the document, or null if unknown
+	 */
+	Integer get(Object document) {
+		return versions.get(new Key(document, null));
+	}
+
+	void put(Object document, int version) {
+		expunge();
+		versions.put(new Key(document, collected), version);
+	}
+
+	/**
+	 * Sets the version of the document if it is still the expected one.
+	 */
+	boolean replace(Object document, int expected, int version) {
+		return versions.replace(new Key(document, null), expected, version);
+	}
+
+	int size() {
+		expunge();
+		return versions.size();
+	}
+
+	private void expunge() {
+		Reference< ? > key;
+		while ((key = collected.poll()) != null)
+			versions.remove(key);
+	}
+}
@@ -0,0 +1,214 @@
+package org.bndtools.rt.store.mongo;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.bndtools.rt.store.mongo.StoreTest.Basic;
+import org.bndtools.rt.store.mongo.StoreTest.Nested;
+
+import aQute.bnd.annotation.component.*;
+import aQute.test.dummy.ds.*;
+import aQute.test.dummy.log.*;
+
+import com.mongodb.*;
+
+/**
+ * Benchmarks of the store, run from the main method rather than by the test
+ * suite, which only checks the behavior. The benchmarks to run are given as
+ * arguments, all of them by default.
+ */
+public class StoreBenchmark {
+
+	MongoDBImpl	mongo;
+	MongoCodec	mc	= new MongoCodec(null);
+
+	@Reference
+	void setMongo(MongoDBImpl mongo) throws Exception {
+		this.mongo = mongo;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Set<String> run = new HashSet<String>(Arrays.asList(args));
+		StoreBenchmark benchmark = new StoreBenchmark();
+		if (run.isEmpty() || run.contains("upsert"))
+			benchmark.upsert();
+		if (run.isEmpty() || run.contains("codec"))
+			benchmark.codec();
+		if (run.isEmpty() || run.contains("bson"))
+			benchmark.bson();
+	}
+
+	/**
+	 * @return the store of the given collection, in the database of the tests
+	 */
+	<T> MongoStoreImpl<T> store(Class<T> type, String collection) throws Exception {
+		if (mongo == null) {
+			DummyDS ds = new DummyDS();
+			ds.add(this);
+			ds.add(MongoDBImpl.class).$("db", "test-mongo");
+			ds.add(new DummyLog().direct().stacktrace());
+			ds.wire();
+		}
+		return mongo.getStore(type, collection);
+	}
+
+	/**
+	 * Benchmark of upsert, against the previous implementation: a count to
+	 * find out whether the document exists, then an insert or an update
+	 * preceded by another count.
+	 */
+	void upsert() throws Exception {
+		MongoStoreImpl<Basic> store = store(Basic.class, "upsert");
+		store.drop();
+
+		int n = 1000;
+		List<Basic> docs = new ArrayList<Basic>();
+		for (int i = 0; i < n; i++) {
+			Basic b = new Basic();
+			b._id = "b" + i;
+			b.value = i;
+			docs.add(b);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			long t0 = System.nanoTime();
+			for (Basic b : docs) {
+				b.string = "old" + round;
+				if (store.find(b).count() == 0)
+					store.insert(b);
+				else {
+					store.find(b).count();
+					store.find(b).set("value", b.value).set("string", b.string).update();
+				}
+				store.find(b).count();
+			}
+			long t1 = System.nanoTime();
+			for (Basic b : docs) {
+				b.string = "new" + round;
+				store.upsert(b);
+			}
+			long t2 = System.nanoTime();
+			System.out.printf("upsert x %d: previous %d us/op, single round trip %d us/op%n", n, (t1 - t0) / 1000 / n,
+					(t2 - t1) / 1000 / n);
+		}
+	}
+
+	/**
+	 * @return a document with fields of every kind
+	 */
+	static Nested nested() {
+		Nested n = new Nested();
+		n._id = "n";
+		n.time = System.currentTimeMillis();
+		n.ratio = 0.5;
+		n.flag = true;
+		n.c = 'X';
+		n.basic = new Basic();
+		n.basic._id = "b";
+		n.basic.value = 42;
+		n.basic.string = "basic";
+		n.tags = Arrays.asList("a", "b", "c");
+		return n;
+	}
+
+	/**
+	 * Benchmark of the codec plans, against the previous implementation: the
+	 * fields looked up and a set of the objects being encoded allocated for
+	 * every document, and the documents decoded by the converter.
+	 */
+	void codec() throws Exception {
+		final Nested n = nested();
+		final DBObject dbo = (DBObject) mc.toMongo(n);
+
+		int count = 100000;
+		for (int round = 0; round < 3; round++) {
+			measure("encode, previous", count, new Op() {
+				public void run() throws Exception {
+					StoreTest.reflectiveToMongo(n, new HashSet<Object>());
+				}
+			});
+			measure("encode, plan", count, new Op() {
+				public void run() throws Exception {
+					mc.toMongo(n);
+				}
+			});
+			measure("decode, previous", count, new Op() {
+				public void run() throws Exception {
+					mc.converter.convert((Type) Nested.class, dbo);
+				}
+			});
+			measure("decode, plan", count, new Op() {
+				public void run() throws Exception {
+					mc.fromMongo(Nested.class, dbo);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Benchmark of the BSON written and read straight from and to the fields,
+	 * against BasicDBObject trees encoded and decoded by the driver.
+	 */
+	void bson() throws Exception {
+		final Nested n = nested();
+		final ClassCodec codec = mc.codec(Nested.class);
+		final byte[] bson = new DocumentEncoder(mc).encode(new DocumentObject(n, codec, 0, null));
+
+		int count = 100000;
+		for (int round = 0; round < 3; round++) {
+			measure("write, tree", count, new Op() {
+				public void run() throws Exception {
+					DBObject o = (DBObject) mc.toMongo(n);
+					o.put("__version", 0);
+					new DefaultDBEncoder().encode(o);
+				}
+			});
+			measure("write, direct", count, new Op() {
+				public void run() throws Exception {
+					new DocumentEncoder(mc).encode(new DocumentObject(n, codec, 0, null));
+				}
+			});
+			// A decoder reads all the documents of a response
+			final DBDecoder treeDecoder = new DefaultDBDecoder();
+			final DBDecoder directDecoder = new DocumentDecoder(codec, Collections.<String> emptySet(), false);
+			measure("read, tree", count, new Op() {
+				public void run() throws Exception {
+					DBObject o = treeDecoder.decode(bson, (DBCollection) null);
+					o.removeField("__version");
+					mc.fromMongo(Nested.class, o);
+				}
+			});
+			measure("read, direct", count, new Op() {
+				public void run() throws Exception {
+					directDecoder.decode(bson, (DBCollection) null);
+				}
+			});
+		}
+	}
+
+	interface Op {
+		void run() throws Exception;
+	}
+
+	private static void measure(String name, int count, Op op) throws Exception {
+		long a0 = allocated();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			op.run();
+		long t1 = System.nanoTime();
+		long a1 = allocated();
+		System.out.printf("%s x %d: %d ns/op, %d bytes/op%n", name, count, (t1 - t0) / count, (a1 - a0) / count);
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread, or 0 if the JVM does
+	 *         not tell
+	 */
+	private static long allocated() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+}
@@ -1,6 +1,7 @@
 package org.bndtools.rt.store.mongo;
 
 import java.io.*;
+import java.lang.reflect.*;
 import java.util.*;
 
 import javax.swing.text.html.HTMLDocument.HTMLReader.IsindexAction;
@@ -12,6 +13,9 @@ import aQute.lib.io.*;
 import aQute.test.dummy.ds.*;
 import aQute.test.dummy.log.*;
 
+import org.bndtools.service.store.Cursor;
+import org.bndtools.service.store.Index;
+
 import com.mongodb.*;
 
 public class StoreTest extends TestCase {
@@ -328,6 +332,390 @@ public class StoreTest extends TestCase {
 		assertEquals(0, store.versions.size()); // May not always be true, depending on the gc
 	}
 	
+	/**
+	 * Tests that a document written without a version, e.g. by another
+	 * application, is read with an unknown version
+	 */
+	public void testDecodeWithoutVersion() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "versionless");
+		MongoCursorImpl<Basic> cursor = store.all();
+
+		Basic basic = cursor.decode(new BasicDBObject("_id", "1").append("value", 3));
+		assertEquals(3, basic.value);
+		assertNull(store.versions.get(basic));
+
+		basic = cursor.decode(new BasicDBObject("_id", "2").append("value", 4).append("__version", 2));
+		assertEquals(Integer.valueOf(2), store.versions.get(basic));
+	}
+
+	/**
+	 * Pages over documents whose sort field is missing, null or of another
+	 * type than the last one of the previous page
+	 */
+	public static class Untyped {
+		public String	_id;
+		public int		value;
+		public Object	string;
+	}
+
+	public void testKeysetWithMissingField() throws Exception {
+		MongoStoreImpl<Untyped> store = mongo.getStore(Untyped.class, "keyset");
+		store.all().remove();
+		for (int i = 0; i < 6; i++) {
+			Untyped basic = new Untyped();
+			basic._id = "" + i;
+			basic.value = i;
+			if (i > 1)
+				basic.string = "s" + i;
+			store.insert(basic);
+		}
+		store.collection.insert(new BasicDBObject("_id", "6").append("value", 6));
+		store.collection.insert(new BasicDBObject("_id", "7").append("value", 7).append("string", 7));
+
+		for (int direction : new int[] {1, -1}) {
+			final List<Integer> visited = new ArrayList<Integer>();
+			MongoCursorImpl<Untyped> cursor = store.all().batchSize(1);
+			if (direction > 0)
+				cursor.ascending("string");
+			else
+				cursor.descending("string");
+			cursor.visit(new Cursor.Visitor<Untyped>() {
+				public boolean visit(Untyped basic) {
+					visited.add(basic.value);
+					return true;
+				}
+			});
+			assertEquals(8, visited.size());
+			assertEquals(8, new HashSet<Integer>(visited).size());
+		}
+
+		Untyped missing = store.where("value=%d", 6).one();
+		assertEquals(5, store.all().ascending("string").after(missing).count());
+		assertEquals(0, store.all().descending("string").after(missing).count());
+		Untyped string = store.where("value=%d", 2).one();
+		assertEquals(3, store.all().ascending("string").after(string).count());
+		assertEquals(4, store.all().descending("string").after(string).count());
+	}
+
+	public void testKeysetPredicate() throws Exception {
+		ClassCodec basic = mc.codec(Basic.class);
+		BasicDBObject last = new BasicDBObject("_id", "5").append("value", 3).append("string", "s");
+
+		assertEquals(new BasicDBObject("_id", new BasicDBObject("$gt", "5")),
+				MongoCursorImpl.after(new BasicDBObject("_id", 1), last, basic));
+		assertEquals(new BasicDBObject("_id", new BasicDBObject("$lt", "5")),
+				MongoCursorImpl.after(new BasicDBObject("_id", -1), last, basic));
+
+		BasicDBList or = new BasicDBList();
+		or.add(new BasicDBObject("value", new BasicDBObject("$gt", 3)));
+		or.add(new BasicDBObject("value", 3).append("_id", new BasicDBObject("$gt", "5")));
+		assertEquals(new BasicDBObject("$or", or).append("value", new BasicDBObject("$gte", 3)),
+				MongoCursorImpl.after(new BasicDBObject("value", 1).append("_id", 1), last, basic));
+
+		// A nullable field sorts its nulls last when descending
+		DBObject after = MongoCursorImpl.after(new BasicDBObject("string", -1).append("_id", 1), last, basic);
+		assertEquals(3, ((List< ? >) after.get("$or")).size());
+		assertFalse(after.containsField("string"));
+
+		// An untyped field may hold values of any type
+		after = MongoCursorImpl.after(new BasicDBObject("string", 1).append("_id", 1), last, mc.codec(Untyped.class));
+		assertTrue(((List< ? >) after.get("$or")).size() > 2);
+	}
+
+	public static class Indexed {
+		public String	_id;
+		@Index
+		public int		value;
+		@Index(unique = true)
+		public String	name;
+		public String	other;
+	}
+
+	public void testIndex() throws Exception {
+		MongoStoreImpl<Indexed> store = mongo.getStore(Indexed.class, "indexed");
+		store.index("other", "-value");
+
+		Set<String> names = new HashSet<String>();
+		for (DBObject index : store.collection.getIndexInfo())
+			names.add((String) index.get("name"));
+		assertTrue(names.contains("value_1"));
+		assertTrue(names.contains("name_1"));
+		assertTrue(names.contains("other_1_value_-1"));
+
+		Indexed a = new Indexed();
+		a.name = "a";
+		store.insert(a);
+		Indexed b = new Indexed();
+		b.name = "a";
+		assertNull(store.insert(b));
+		assertEquals(1, store.all().count());
+
+		store.all().word("hello").update();
+		names.clear();
+		for (DBObject index : store.collection.getIndexInfo())
+			names.add((String) index.get("name"));
+		assertTrue(names.contains("__keywords_1"));
+	}
+
+	/**
+	 * The text index stems the words and sorts by relevance, the keywords
+	 * only match whole words
+	 */
+	public void testSearch() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "search");
+		String[] texts = {
+				"run run running", "a runner", "walking", "run far away today"
+		};
+		for (int i = 0; i < texts.length; i++) {
+			Basic basic = new Basic();
+			basic.value = i;
+			store.insert(basic);
+			store.find(basic).text(texts[i]).update();
+		}
+
+		assertEquals(2, store.all().search("run").count());
+		assertEquals(1, store.all().search("run -far").count());
+		assertEquals(2, store.all().search("walking").one().value);
+		assertEquals(3, store.all().search("run far").one().value);
+		assertEquals(0, store.all().search("run walking").count());
+		assertEquals(3, store.all().search("-far").count());
+		assertEquals(2, store.all().query("run", null).count());
+		assertEquals(1, store.all().query("run -far", null).count());
+
+		if (mongo.isTextSearch()) {
+			assertEquals(2, store.all().search("running").count());
+			List<Basic> found = store.all().search("run").collect();
+			assertEquals(0, found.get(0).value);
+			assertEquals(3, found.get(1).value);
+			assertEquals(0, store.all().search("run").descending("value").collect().get(1).value);
+		} else
+			assertEquals(1, store.all().search("running").count());
+	}
+
+	/**
+	 * A collection with its own text index searches the keywords without one
+	 */
+	public void testSearchWithOwnTextIndex() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "searchown");
+		if (mongo.isTextSearch())
+			store.collection.ensureIndex(new BasicDBObject("string", "text"));
+		Basic basic = new Basic();
+		basic.string = "walking";
+		store.insert(basic);
+		store.find(basic).text("run far away").update();
+
+		assertEquals(1, store.all().search("run far").count());
+		assertEquals(0, store.all().search("walking").count());
+		assertFalse(store.isTextIndexed());
+	}
+
+	/**
+	 * Queries are reported once per shape, whatever the values
+	 */
+	public void testIndexAdvisor() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "advisor");
+		assertEquals(IndexAdvisor.shape(store.filter("(&(value>=%d)(string=%s))", 1, "a")),
+				IndexAdvisor.shape(store.filter("(&(value>=%d)(string=%s))", 2, "b*")));
+
+		DummyLog log = new DummyLog().full();
+		mongo.setLogService(log);
+		mongo.advisor = new IndexAdvisor(mongo, 0);
+		try {
+			for (int i = 0; i < 10; i++) {
+				Basic basic = new Basic();
+				basic.value = i;
+				store.insert(basic);
+			}
+			store.where("value>=%d", 5).count();
+			store.where("value>=%d", 7).collect();
+			assertEquals(1, log.getEntries().size());
+			assertTrue(log.getEntries().get(0).getMessage().startsWith("Query without index on advisor"));
+
+			store.index("value");
+			store.where("value>=%d", 5).ascending("value").collect();
+			assertEquals(1, log.getEntries().size());
+		}
+		finally {
+			mongo.advisor = null;
+		}
+	}
+
+	/**
+	 * Tests that versions are kept per document instance, from many threads
+	 */
+	public void testVersions() throws Exception {
+		final Versions versions = new Versions();
+		final Basic[] documents = new Basic[1000];
+		for (int i = 0; i < documents.length; i++)
+			documents[i] = new Basic();
+
+		Thread[] threads = new Thread[8];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = offset; i < documents.length; i += 8) {
+						versions.put(documents[i], i);
+						if (!versions.replace(documents[i], i, i + 1) || versions.get(documents[i]) != i + 1)
+							failure[0] = new Exception("Lost the version of document " + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertNull(failure[0]);
+		assertEquals(documents.length, versions.size());
+		assertNull(versions.get(new Basic()));
+		assertFalse(versions.replace(documents[0], 0, 2));
+	}
+
+	/**
+	 * An upsert creates the document at version 1, then replaces it and
+	 * increments its version
+	 */
+	public void testUpsert() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "upsert");
+		store.drop();
+
+		int n = 10;
+		List<Basic> docs = new ArrayList<Basic>();
+		for (int i = 0; i < n; i++) {
+			Basic b = new Basic();
+			b._id = "b" + i;
+			b.value = i;
+			docs.add(b);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			for (Basic b : docs) {
+				b.string = "new" + round;
+				store.upsert(b);
+			}
+		}
+
+		assertEquals(n, store.count());
+		Basic b = store.find(docs.get(0)).one();
+		assertEquals("new2", b.string);
+		assertEquals(Integer.valueOf(3), store.versions.get(b));
+
+		// An inserted document is at version 0
+		Basic inserted = new Basic();
+		inserted._id = "inserted";
+		store.insert(inserted);
+		inserted.string = "upserted";
+		store.upsert(inserted);
+		b = store.find(inserted).one();
+		assertEquals("upserted", b.string);
+		assertEquals(Integer.valueOf(1), store.versions.get(b));
+	}
+
+	public static class Nested {
+		public String		_id;
+		public long			time;
+		public double		ratio;
+		public boolean		flag;
+		public char			c;
+		public Basic		basic;
+		public List<String>	tags;
+	}
+
+	/**
+	 * The codec plans encode the documents like the previous implementation,
+	 * which looked up the fields for every document, and decode them back.
+	 */
+	public void testCodec() throws Exception {
+		Nested n = new Nested();
+		n._id = "n";
+		n.time = System.currentTimeMillis();
+		n.ratio = 0.5;
+		n.flag = true;
+		n.c = 'X';
+		n.basic = new Basic();
+		n.basic._id = "b";
+		n.basic.value = 42;
+		n.basic.string = "basic";
+		n.tags = Arrays.asList("a", "b", "c");
+
+		DBObject dbo = (DBObject) mc.toMongo(n);
+		assertEquals(reflectiveToMongo(n, new HashSet<Object>()), dbo);
+
+		Nested decoded = (Nested) mc.fromMongo(Nested.class, dbo);
+		assertEquals(n.time, decoded.time);
+		assertEquals(n.ratio, decoded.ratio);
+		assertTrue(decoded.flag);
+		assertEquals('X', decoded.c);
+		assertEquals(42, decoded.basic.value);
+		assertEquals("basic", decoded.basic.string);
+		assertEquals(n.tags, decoded.tags);
+	}
+
+	/**
+	 * The BSON written and read straight from and to the fields is the same as
+	 * for BasicDBObject trees encoded and decoded by the driver.
+	 */
+	public void testBson() throws Exception {
+		Nested n = new Nested();
+		n._id = "n";
+		n.time = System.currentTimeMillis();
+		n.ratio = 0.5;
+		n.c = 'X';
+		n.basic = new Basic();
+		n.basic.value = 42;
+		n.basic.string = "basic";
+		n.tags = Arrays.asList("a", "b", "c");
+
+		ClassCodec codec = mc.codec(Nested.class);
+		DBObject tree = (DBObject) mc.toMongo(n);
+		tree.put("__version", 0);
+		byte[] bson = new DefaultDBEncoder().encode(tree);
+		assertTrue(Arrays.equals(bson, new DocumentEncoder(mc).encode(new DocumentObject(n, codec, 0, null))));
+
+		DocumentObject decoded = (DocumentObject) new DocumentDecoder(codec, Collections.<String> emptySet(), false).decode(
+				bson, (DBCollection) null);
+		Nested d = (Nested) decoded.document;
+		assertEquals(Integer.valueOf(0), decoded.version);
+		assertEquals(n.time, d.time);
+		assertEquals('X', d.c);
+		assertEquals("basic", d.basic.string);
+		assertEquals(n.tags, d.tags);
+	}
+
+	/**
+	 * Previous encoding of the objects with public fields
+	 */
+	static Object reflectiveToMongo(Object o, Set<Object> seenObjects) throws Exception {
+		if (o == null || o instanceof Boolean || o instanceof Number || o instanceof String || o instanceof DBObject)
+			return o;
+		if (o instanceof Character)
+			return "" + o;
+
+		if (!seenObjects.add(o))
+			throw new IllegalArgumentException("Infinite cycle in one of the documents field");
+		try {
+			if (o instanceof Iterable) {
+				BasicDBList list = new BasicDBList();
+				for (Object oo : (Iterable< ? >) o)
+					list.add(reflectiveToMongo(oo, seenObjects));
+				return list;
+			}
+			BasicDBObject dbo = new BasicDBObject();
+			for (Field f : o.getClass().getFields()) {
+				if (!Modifier.isStatic(f.getModifiers())) {
+					Object value = reflectiveToMongo(f.get(o), seenObjects);
+					if (value != null)
+						dbo.put(f.getName(), value);
+				}
+			}
+			return dbo;
+		}
+		finally {
+			seenObjects.remove(o);
+		}
+	}
+
 	/**
 	 * Test bug ! misparse in filter()
 	 */
@@ -354,4 +742,47 @@ public class StoreTest extends TestCase {
 		
 		assertEquals(3, store.where(ldap).count());
 	}
+
+	/**
+	 * Filters are compiled once per template, the arguments are bound to its
+	 * values
+	 */
+	public void testFilterCache() throws Exception {
+		MongoStoreImpl<Basic> store = mongo.getStore(Basic.class, "filter");
+
+		String ldap = "(&(value>=%d)(string=%s))";
+		assertEquals(store.filter("(&(value>=1)(string=a))"), store.filter(ldap, 1, "a"));
+		assertEquals(store.filter("(&(value>=2)(string=b*))"), store.filter(ldap, 2, "b*"));
+		assertTrue(store.filters.get(ldap) instanceof LdapFilter.Compiled);
+
+		// An argument cannot change the structure of the filter
+		DBObject filter = store.filter("string=%s", "a)(value=1");
+		assertEquals(1, filter.keySet().size());
+		assertEquals("a)(value=1", filter.get("string"));
+		assertEquals("%", store.filter("string=%%").get("string"));
+		assertEquals("1%", store.filter("string=%d%%", 1).get("string"));
+
+		// Specifiers outside the values are formatted on every call
+		assertEquals(store.filter("value=3"), store.filter("%s=%d", "value", 3));
+		assertTrue(store.filters.get("%s=%d") instanceof LdapFilter.Formatted);
+
+		MongoStoreImpl<TestData> data = mongo.getStore(TestData.class, "testdata");
+		byte[] bytes = "hello".getBytes();
+		assertTrue(Arrays.equals(bytes, (byte[]) data.filter("data=%s", bytes).get("data")));
+		assertEquals("hello", new String(bytes));
+
+		for (int i = 0; i < 2 * MongoStoreImpl.FILTER_CACHE_SIZE; i++)
+			store.filter("value=" + i);
+		assertEquals(MongoStoreImpl.FILTER_CACHE_SIZE, store.filters.size());
+		assertTrue(store.filters.containsKey("value=" + (2 * MongoStoreImpl.FILTER_CACHE_SIZE - 1)));
+		assertFalse(store.filters.containsKey(ldap));
+
+		try {
+			store.filter(ldap, 1);
+			fail();
+		}
+		catch (MissingFormatArgumentException e) {
+			// expected
+		}
+	}
 }
@@ -8,10 +8,15 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
 import org.bndtools.rt.store.test.TestStore.Pair;
+import org.bndtools.service.store.AsyncCursor.Subscriber;
+import org.bndtools.service.store.AsyncCursor.Subscription;
 import org.bndtools.service.store.Cursor;
 import org.bndtools.service.store.Cursor.Visitor;
 import org.bndtools.service.store.DB;
@@ -103,6 +108,35 @@ public class TestCursor extends TestCase {
 		assertEquals(0, pair.second);
 	}
 	
+	public static class Second {
+		public int second;
+	}
+	
+	public interface First {
+		int first();
+	}
+	
+	public void test_select_projection() throws Exception {
+		List<Second> seconds = store.where("first=1").ascending("second").select(Second.class).collect();
+		assertEquals(10, seconds.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i + 1, seconds.get(i).second);
+		
+		assertEquals(2, store.where("&(first=2)(second=3)").select(First.class).one().first());
+		
+		// Only the selected fields are read
+		assertEquals(0, store.where("first=3").select(Second.class, "first").first().second);
+		
+		final List<Second> visited = new ArrayList<Second>();
+		store.where("first=4").select(Second.class).batchSize(3).visit(new Visitor<Second>() {
+			public boolean visit(Second second) {
+				visited.add(second);
+				return true;
+			}
+		});
+		assertEquals(10, visited.size());
+	}
+	
 	public static class Slicee {
 		public String _id;
 		public int normalField;
@@ -326,6 +360,110 @@ public class TestCursor extends TestCase {
 		}
 	}
 	
+	public void test_visit_pages() throws Exception {
+		final List<Pair> visited = new ArrayList<Pair>();
+		boolean result = store.all().descending("first").ascending("second").batchSize(7).visit(new Visitor<TestStore.Pair>() {
+			
+			@Override
+			public boolean visit(Pair t) throws Exception {
+				visited.add(t);
+				return true;
+			}
+		});
+		
+		assertTrue(result);
+		assertEquals(100, visited.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(10 - i / 10, visited.get(i).first);
+			assertEquals(1 + i % 10, visited.get(i).second);
+		}
+		
+		visited.clear();
+		store.all().ascending("first").skip(5).limit(12).batchSize(5).visit(new Visitor<TestStore.Pair>() {
+			
+			@Override
+			public boolean visit(Pair t) throws Exception {
+				visited.add(t);
+				return true;
+			}
+		});
+		assertEquals(12, visited.size());
+	}
+	
+	public void test_after() throws Exception {
+		List<Pair> all = new ArrayList<Pair>();
+		Pair last = null;
+		while (true) {
+			Cursor<Pair> page = store.all().descending("first").limit(15);
+			if (last != null)
+				page.after(last);
+			List<Pair> pairs = page.collect();
+			if (pairs.isEmpty())
+				break;
+			all.addAll(pairs);
+			last = pairs.get(pairs.size() - 1);
+		}
+		
+		assertEquals(100, all.size());
+		for (int i = 1; i < all.size(); i++)
+			assertTrue(all.get(i - 1).first >= all.get(i).first);
+		assertEquals(10, all.get(0).first);
+		assertEquals(1, all.get(99).first);
+		
+		Pair middle = all.get(50);
+		assertEquals(49, store.all().descending("first").after(middle).collect().size());
+		assertEquals(49, store.all().descending("first").after(middle).count());
+		
+		try {
+			store.all().after(new Pair(1, 2));
+			fail("The last seen document must have an _id");
+		} catch (IllegalArgumentException e) {}
+	}
+	
+	public void test_streaming() throws Exception {
+		for (int i = 0; i < 150; i++)
+			store.insert(new Pair(100, i));
+		
+		// No implicit limit
+		assertEquals(250, store.all().collect().size());
+		assertEquals(250, store.all().batchSize(20).collect().size());
+	}
+	
+	public void test_async() throws Exception {
+		assertEquals(Integer.valueOf(10), store.where("first=%d", 5).async().count().toCompletableFuture().get(10, TimeUnit.SECONDS));
+		assertEquals(new Pair(5, 1), store.where("first=5").ascending("second").async().first().toCompletableFuture().get(10, TimeUnit.SECONDS));
+		
+		// The documents are only fetched as they are requested
+		final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+		final Subscription[] subscription = new Subscription[1];
+		store.where("first=5").async().subscribe(new Subscriber<Pair>() {
+			public void onSubscribe(Subscription s) {
+				subscription[0] = s;
+				s.request(3);
+			}
+			public void onNext(Pair pair) {
+				received.add(pair);
+			}
+			public void onError(Throwable failure) {
+				received.add(failure);
+			}
+			public void onComplete() {
+				received.add("complete");
+			}
+		});
+		for (int i = 0; i < 3; i++)
+			assertTrue(received.poll(10, TimeUnit.SECONDS) instanceof Pair);
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		
+		subscription[0].request(Long.MAX_VALUE);
+		for (int i = 0; i < 7; i++)
+			assertTrue(received.poll(10, TimeUnit.SECONDS) instanceof Pair);
+		assertEquals("complete", received.poll(10, TimeUnit.SECONDS));
+		
+		subscription[0].request(0);
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+	}
+	
 	public void test_first_one() throws Exception {
 		Store<Slicee> store2 = db.getStore(Slicee.class, "slicee");
 		
@@ -1,9 +1,14 @@
 package org.bndtools.rt.store.test;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import org.bndtools.service.store.AsyncStore;
+import org.bndtools.service.store.BatchResult;
+import org.bndtools.service.store.BatchResult.Status;
 import org.bndtools.service.store.DB;
 import org.bndtools.service.store.Store;
 import org.osgi.framework.BundleContext;
@@ -103,6 +108,23 @@ public class TestStore extends TestCase {
 		assertEquals(pairWithID.second, fromDB.second);
 	}
 	
+	public void test_async() throws Exception {
+		AsyncStore<Pair> async = store.async();
+		Pair pair = new Pair(3, 4);
+		assertSame(pair, async.insert(pair).toCompletableFuture().get(10, TimeUnit.SECONDS));
+		assertNotNull(pair._id);
+		
+		pair.second = 5;
+		async.update(pair).toCompletableFuture().get(10, TimeUnit.SECONDS);
+		assertEquals(5, store.find(pair).one().second);
+		assertEquals(Long.valueOf(1), async.count().toCompletableFuture().get(10, TimeUnit.SECONDS));
+		
+		try {
+			async.update(new Pair(1, 2)).toCompletableFuture().get(10, TimeUnit.SECONDS);
+			fail("The document to update must have an _id");
+		} catch (ExecutionException e) {}
+	}
+	
 	public void test_update() throws Exception {
 		Pair pairWithoutID = new Pair(1,2);
 		
@@ -174,6 +196,68 @@ public class TestStore extends TestCase {
 		assertEquals(4, fetched2.second);
 	}
 	
+	public void test_insert_all() throws Exception {
+		List<Pair> pairs = new ArrayList<Pair>();
+		for (int i = 0; i < 25; i++)
+			pairs.add(new Pair(i, i));
+		
+		BatchResult<Pair> result = store.batch().size(10).insertAll(pairs);
+		assertTrue(result.isSuccess());
+		assertEquals(25, result.count(Status.INSERTED));
+		assertEquals(25, store.count());
+		assertNotNull(pairs.get(24)._id);
+		
+		// Ordered: stops at the first duplicate
+		List<Pair> more = Arrays.asList(new Pair("A", 1, 1), pairs.get(3), new Pair("B", 2, 2));
+		result = store.insertAll(more);
+		assertEquals(Status.INSERTED, result.get(0).status);
+		assertEquals(Status.DUPLICATE, result.get(1).status);
+		assertNotNull(result.get(1).error);
+		assertEquals(Status.SKIPPED, result.get(2).status);
+		assertEquals(26, store.count());
+		
+		// Unordered: every document is attempted
+		more = Arrays.asList(new Pair("C", 1, 1), new Pair("A", 1, 1), new Pair("D", 2, 2));
+		result = store.batch().ordered(false).insertAll(more);
+		assertEquals(Status.INSERTED, result.get(0).status);
+		assertEquals(Status.DUPLICATE, result.get(1).status);
+		assertEquals(Status.INSERTED, result.get(2).status);
+		assertEquals(1, result.failures().size());
+		assertEquals(28, store.count());
+	}
+	
+	public void test_upsert_all() throws Exception {
+		Pair existing = new Pair(1, 2);
+		store.insert(existing);
+		
+		existing.first = 10;
+		List<Pair> pairs = Arrays.asList(existing, new Pair(3, 4), new Pair("X", 5, 6));
+		BatchResult<Pair> result = store.upsertAll(pairs);
+		assertTrue(result.isSuccess());
+		assertEquals(Status.UPDATED, result.get(0).status);
+		assertEquals(Status.INSERTED, result.get(1).status);
+		assertEquals(Status.INSERTED, result.get(2).status);
+		
+		assertEquals(3, store.count());
+		assertEquals(10, store.find(existing).one().first);
+		assertEquals(5, store.where("_id=%s", "X").one().first);
+		
+		// Ordered: stops at the first failed update, the later documents are not written
+		Store<Pair> unique = db.getStore(Pair.class, "unique");
+		unique.all().remove();
+		unique.unique("second");
+		Pair conflicting = unique.insert(new Pair(1, 1));
+		unique.insert(new Pair(2, 2));
+		conflicting.second = 2;
+		result = unique.upsertAll(Arrays.asList(new Pair("Y", 3, 3), conflicting, new Pair("Z", 4, 4)));
+		assertEquals(Status.INSERTED, result.get(0).status);
+		assertEquals(Status.FAILED, result.get(1).status);
+		assertNotNull(result.get(1).error);
+		assertEquals(Status.SKIPPED, result.get(2).status);
+		assertEquals(3, unique.count());
+		assertEquals(0, unique.where("_id=%s", "Z").count());
+	}
+	
 	public void test_find() throws Exception {
 		Pair pair = new Pair(1,2);
 		
@@ -202,6 +286,17 @@ public class TestStore extends TestCase {
 		} catch (ConcurrentModificationException e) {}
 		
 		assertEquals(2, store.all().one().first);
+		
+		// The version is recorded by every optimistic update
+		fetched = store.all().one();
+		store.optimistic(fetched).inc("first", 1).update();
+		store.optimistic(fetched).inc("first", 1).update();
+		assertEquals(4, store.all().one().first);
+		
+		try {
+			store.optimistic(new Pair("unknown", 1, 2)).inc("first", 1).update();
+			fail("The version of the document is unknown");
+		} catch (IllegalStateException e) {}
 	}
 	
 	public static class Cycle {
@@ -1,13 +1,19 @@
 package org.bndtools.rt.timer.test;
 
+import java.lang.management.ManagementFactory;
 import java.lang.ref.WeakReference;
+import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
 
+import org.bndtools.service.timer.SlackTimer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
@@ -95,6 +101,152 @@ public class TimerServiceTest extends TestCase {
 		
     }
     
+    /**
+     * Verification of periodic tasks, and of their cancellation
+     * @throws Exception
+     */
+    public void test_periodic_task_cancelled() throws Exception {
+    	ServiceReference ref = context.getServiceReference(Timer.class.getName());
+    	Timer timer = (Timer) context.getService(ref);
+    	
+    	final Semaphore sem = new Semaphore(0);
+    	TimerTask task = new TimerTask() {
+			
+			@Override
+			public void run() {
+				sem.release();
+			}
+		};
+		
+		timer.scheduleAtFixedRate(task, 0, 50);
+		
+		assertTrue(sem.tryAcquire(3, 3000, TimeUnit.MILLISECONDS));
+		assertTrue(task.cancel());
+		Thread.sleep(100);
+		sem.drainPermits();
+		Thread.sleep(200);
+		assertEquals(0, sem.availablePermits());
+		
+		try {
+			timer.schedule(task, 10);
+			fail("A cancelled task cannot be scheduled again");
+		} catch (IllegalStateException e) {
+			// expected, as with java.util.Timer
+		}
+    }
+    
+    /**
+     * Verification that a task cancelled before its execution does not run,
+     * and that an executed task can no longer be cancelled
+     * @throws Exception
+     */
+    public void test_task_cancelled() throws Exception {
+    	ServiceReference ref = context.getServiceReference(Timer.class.getName());
+    	Timer timer = (Timer) context.getService(ref);
+    	
+    	final Semaphore sem = new Semaphore(0);
+    	TimerTask task = new TimerTask() {
+			
+			@Override
+			public void run() {
+				sem.release();
+			}
+		};
+		long time = System.currentTimeMillis() + 100;
+		timer.schedule(task, new Date(time));
+		assertEquals(time, task.scheduledExecutionTime());
+		assertTrue(task.cancel());
+		assertFalse(sem.tryAcquire(300, TimeUnit.MILLISECONDS));
+		
+		task = new TimerTask() {
+			
+			@Override
+			public void run() {
+				sem.release();
+			}
+		};
+		timer.schedule(task, 10);
+		assertTrue(sem.tryAcquire(3000, TimeUnit.MILLISECONDS));
+		assertFalse(task.cancel());
+    }
+    
+    /**
+     * Verification that tasks scheduled with some slack and jitter still run,
+     * within their window
+     * @throws Exception
+     */
+    public void test_slack_timer() throws Exception {
+    	ServiceReference ref = context.getServiceReference(SlackTimer.class.getName());
+    	SlackTimer timer = (SlackTimer) context.getService(ref);
+    	
+    	final Semaphore sem = new Semaphore(0);
+    	long start = System.currentTimeMillis();
+    	for (int i = 0; i < 10; i++) {
+    		timer.scheduleWithSlack(new TimerTask() {
+    			
+    			@Override
+    			public void run() {
+    				sem.release();
+    			}
+    		}, 50 + i, 100);
+    	}
+    	assertTrue(sem.tryAcquire(10, 3000, TimeUnit.MILLISECONDS));
+    	assertTrue(System.currentTimeMillis() - start >= 50);
+    	
+    	TimerTask task = new TimerTask() {
+			
+			@Override
+			public void run() {
+				sem.release();
+			}
+		};
+		timer.scheduleAtFixedRateWithSlack(task, 0, 50, 10, 20);
+		assertTrue(sem.tryAcquire(5, 3000, TimeUnit.MILLISECONDS));
+		assertTrue(timer.cancel(task));
+		assertFalse(task.cancel());
+		
+		try {
+			timer.scheduleWithSlack(new TimerTask() {
+				
+				@Override
+				public void run() {
+				}
+			}, 10, -1);
+			fail("The slack cannot be negative");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		context.ungetService(ref);
+    }
+    
+    /**
+     * Verification that the statistics of the timer of a bundle are registered
+     * as an MBean, and record the executions
+     * @throws Exception
+     */
+    public void test_statistics_registered() throws Exception {
+    	ServiceReference ref = context.getServiceReference(Timer.class.getName());
+    	Timer timer = (Timer) context.getService(ref);
+    	
+    	final Semaphore sem = new Semaphore(0);
+    	timer.schedule(new TimerTask() {
+			
+			@Override
+			public void run() {
+				sem.release();
+			}
+		}, 10);
+		assertTrue(sem.tryAcquire(3000, TimeUnit.MILLISECONDS));
+		Thread.sleep(100);
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.bndtools.rt.timer:type=Timer,bundle="
+				+ ObjectName.quote(context.getBundle().getSymbolicName()) + ",id=" + context.getBundle().getBundleId());
+		assertTrue(server.isRegistered(name));
+		assertTrue((Long) server.getAttribute(name, "Scheduled") >= 1);
+		assertTrue((Long) server.getAttribute(name, "Executed") >= 1);
+    }
+    
     /**
      * Check that a timer service instance is cleaned up when the requesting bundle ungets it.
      * The timer itself is canceled, and the service instance becomes ready for garbage collection.
@@ -0,0 +1,116 @@
+package org.bndtools.rt.timer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A java.util.Timer whose thread is kept blocked, so that it never runs the
+ * tasks scheduled on it. Scheduling a task on it is the supported way to put
+ * a java.util.TimerTask in its scheduled state: {@link TimerTask#cancel()}
+ * then returns true and marks the task cancelled, and
+ * {@link TimerTask#scheduledExecutionTime()} returns the time of a single
+ * execution. The wheel samples that state right before each execution.
+ *
+ * The tasks of a single execution share a few registries: an execution about
+ * to run is cancelled through {@link TimerTask#cancel()}, which tells whether
+ * the task was cancelled meanwhile, and the done tasks are purged once they
+ * are numerous enough. A periodic task has a registry of its own, where it is
+ * the only task, so that {@link #isCancelled()} samples it without changing
+ * its state.
+ */
+class Registry extends java.util.Timer {
+	final CountDownLatch	blocked	= new CountDownLatch(1);
+	// Registered and done tasks since the last purge, guarded by this
+	int						registered;
+	int						done;
+	boolean					cancelled;
+
+	Registry() {
+		super("Timer registry", true);
+		final CountDownLatch started = new CountDownLatch(1);
+		super.schedule(new TimerTask() {
+			public void run() {
+				started.countDown();
+				boolean interrupted = false;
+				while (true) {
+					try {
+						blocked.await();
+						break;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}, 0);
+		// No task may be registered before the thread is blocked
+		boolean interrupted = false;
+		while (true) {
+			try {
+				started.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @param period
+	 *            Positive for a fixed rate, negative for a fixed delay, 0 for a
+	 *            single execution
+	 * @throws IllegalStateException
+	 *             if the task was already scheduled or cancelled
+	 */
+	void register(TimerTask task, long time, long period) {
+		Date first = new Date(time);
+		if (period == 0)
+			schedule(task, first);
+		else if (period > 0)
+			scheduleAtFixedRate(task, first, period);
+		else
+			schedule(task, first, -period);
+		synchronized (this) {
+			registered++;
+		}
+	}
+
+	/**
+	 * Called once for every task of a single execution that ran or will not
+	 * run, and is now cancelled.
+	 */
+	synchronized void done() {
+		if (++done >= 256 && done >= registered / 2)
+			flush();
+	}
+
+	/**
+	 * Removes the cancelled tasks right away
+	 */
+	synchronized void flush() {
+		registered -= Math.min(purge(), registered);
+		done = 0;
+	}
+
+	/**
+	 * @return true if the only task of this registry was cancelled
+	 */
+	synchronized boolean isCancelled() {
+		if (!cancelled && purge() != 0)
+			cancelled = true;
+		return cancelled;
+	}
+
+	/**
+	 * Discards the tasks and ends the thread
+	 */
+	void close() {
+		cancel();
+		blocked.countDown();
+	}
+}
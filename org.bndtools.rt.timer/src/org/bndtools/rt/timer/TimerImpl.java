@@ -1,24 +1,649 @@
 package org.bndtools.rt.timer;
 
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+import org.bndtools.rt.timer.TimerImpl.Config;
+import org.bndtools.rt.utils.log.LogTracker;
+import org.bndtools.service.timer.*;
+import org.osgi.framework.Bundle;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
+
 import aQute.bnd.annotation.component.*;
+import aQute.bnd.annotation.metatype.*;
 
 /**
  * Provides java.util.Timer as a service in an OSGi environment.
- * 
+ *
  * This service is instantiated once for every requesting bundle by the service
- * factory. When the requesting bundle ungets this service (either explicitly 
+ * factory. When the requesting bundle ungets this service (either explicitly
  * or due to this bundle's leaving the active state), the underlying timer
  * is canceled and the service instance can be reclaimed by the garbage
- * collector. 
- * 
- * @see <a href="http://docs.oracle.com/javase/1.5.0/docs/api/java/util/Timer.html">java.util.Timer</a> 
+ * collector.
+ *
+ * The tasks of all the bundles are scheduled on a single timing wheel, with
+ * one tick thread, instead of a thread and a heap of tasks per bundle. Due
+ * tasks are run by a small pool of threads, also shared by all the bundles,
+ * whose size is set through the Config Admin. As with java.util.Timer, the
+ * tasks of a bundle run one at a time, in order. The state of every task is
+ * kept by a {@link Registry}, so that {@link TimerTask#cancel()} stops it as
+ * with java.util.Timer.
+ *
+ * Through {@link SlackTimer}, a task may also accept to run a bit late, so
+ * that the tasks due at about the same time share a wake-up of the wheel,
+ * and a periodic task may have each execution delayed by a random jitter.
+ *
+ * The lateness and execution time of the tasks of every bundle are recorded,
+ * and registered as an MBean. A task blocking a thread of the pool for too
+ * long is logged as a warning.
+ *
+ * @see <a href="http://docs.oracle.com/javase/1.5.0/docs/api/java/util/Timer.html">java.util.Timer</a>
  */
-@Component(provide = java.util.Timer.class, servicefactory = true)
-public class TimerImpl extends java.util.Timer {
+@Component(provide = {java.util.Timer.class, SlackTimer.class}, servicefactory = true, designate = Config.class, configurationPolicy = ConfigurationPolicy.optional)
+public class TimerImpl extends java.util.Timer implements SlackTimer {
+
+	/**
+	 * Configuration parameters expected from the Config Admin, all optional
+	 */
+	interface Config {
+		/**
+		 * Number of threads running the tasks of all the bundles
+		 */
+		@Meta.AD(required = false, deflt = "2")
+		int threads();
+
+		/**
+		 * Duration of a tick of the timing wheel, in milliseconds. It bounds
+		 * how late a task may fire.
+		 */
+		@Meta.AD(required = false, deflt = "10")
+		long tick();
+
+		/**
+		 * Number of buckets of the timing wheel
+		 */
+		@Meta.AD(required = false, deflt = "512")
+		int buckets();
+
+		/**
+		 * Duration after which a running task is reported as blocking a
+		 * thread of the pool, in milliseconds, or 0 to disable the reports
+		 */
+		@Meta.AD(required = false, deflt = "1000")
+		long blockedThreshold();
+	}
+
+	// Wheel and pool shared by all the bundles, and the number of bundles
+	// using them
+	static TimingWheel			wheel;
+	static ThreadPoolExecutor	pool;
+	static Registry[]			registries;
+	static int					users;
+	static volatile long		blockedThreshold;
+	static final Random			random	= new Random();
+
+	/**
+	 * An execution of a task, waiting on the wheel then in the due tasks of
+	 * its timer. It holds the scheduling state of the task, and the pending
+	 * executions of a timer are kept by task, so that they can be cancelled
+	 * with the timer. Static and reset on cancel, so that a cancelled timeout
+	 * left in its bucket until the tick thread wakes up holds neither the
+	 * task nor the timer.
+	 */
+	static class Fire extends TimingWheel.Timeout {
+		volatile TimerImpl	timer;
+		volatile TimerTask	task;
+		// Keeps the state of the task as a java.util.TimerTask
+		final Registry		registry;
+		// Nominal execution time, in milliseconds
+		final long			time;
+		// Positive for a fixed rate, negative for a fixed delay, 0 for a
+		// single execution
+		final long			period;
+		// In milliseconds, kept for the next executions of a periodic task
+		final long			slack;
+		final long			jitter;
+
+		Fire(TimerImpl timer, TimerTask task, Registry registry, long time, long period, long slack, long jitter) {
+			this.timer = timer;
+			this.task = task;
+			this.registry = registry;
+			this.time = time;
+			this.period = period;
+			this.slack = slack;
+			this.jitter = jitter;
+		}
+
+		@Override
+		void cancelled() {
+			timer = null;
+			task = null;
+		}
+
+		@Override
+		void expired() {
+			TimerImpl timer = this.timer;
+			if (timer != null)
+				timer.expired(this);
+		}
+
+		/**
+		 * Called right before the execution runs. A task of a single
+		 * execution is cancelled, so that {@link TimerTask#cancel()} returns
+		 * false from now on, as for an executed task.
+		 * 
+		 * @return false if the task was cancelled meanwhile
+		 */
+		boolean claim() {
+			TimerTask task = this.task;
+			if (task == null)
+				return false;
+			if (period != 0)
+				return !registry.isCancelled();
+			boolean claimed = task.cancel();
+			registry.done();
+			return claimed;
+		}
+
+		/**
+		 * Releases the task from its registry, when the execution will not
+		 * run because the task or its timer was cancelled. Must be called
+		 * before the timeout is cancelled, which forgets the task.
+		 */
+		void drop() {
+			TimerTask task = this.task;
+			if (period != 0)
+				registry.close();
+			else if (task != null) {
+				task.cancel();
+				registry.done();
+			}
+		}
+	}
+
+	/**
+	 * Runs the next due task of this timer in the shared pool. Only one task
+	 * of a timer runs at a time, and the next one is submitted again to the
+	 * pool, so that the bundles with many due tasks take turns with the
+	 * others.
+	 */
+	class Drain implements Runnable {
+
+		public void run() {
+			Fire f;
+			TimerTask task;
+			synchronized (TimerImpl.this) {
+				f = cancelled ? null : due.poll();
+				task = f == null ? null : f.task;
+				if (task == null) {
+					draining = false;
+					return;
+				}
+			}
+
+			if (!f.claim()) {
+				if (f.period != 0)
+					cancel(task);
+				next();
+				return;
+			}
+
+			long start = System.nanoTime();
+			stats.lateness.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - f.time));
+			Watchdog watchdog = null;
+			long threshold = blockedThreshold;
+			if (threshold > 0) {
+				watchdog = new Watchdog(TimerImpl.this, task, Thread.currentThread(), threshold);
+				shared.schedule(watchdog, start + TimeUnit.MILLISECONDS.toNanos(threshold), 0);
+			}
+			try {
+				task.run();
+			}
+			catch (Throwable t) {
+				// As with java.util.Timer, a failing task kills the timer, but
+				// only the timer of its own bundle
+				LogService log = TimerImpl.this.log;
+				if (log != null)
+					log.log(LogService.LOG_ERROR, String.format(
+							"Task %s of bundle %s failed, the timer of the bundle is cancelled", task.getClass()
+									.getName(), owner), t);
+				cancel();
+			}
+			finally {
+				if (watchdog != null)
+					watchdog.cancel();
+				stats.execution.record(System.nanoTime() - start);
+				stats.executed.incrementAndGet();
+			}
+			ran(f, task);
+			next();
+		}
+
+		/**
+		 * Submits the drain again if more tasks are due
+		 */
+		private void next() {
+			synchronized (TimerImpl.this) {
+				if (cancelled || due.isEmpty()) {
+					draining = false;
+					return;
+				}
+			}
+			execute();
+		}
+	}
+
+	/**
+	 * Reports a task still running once the threshold is elapsed. The report
+	 * comes from the tick thread, while the task is blocking its thread.
+	 * Static and reset on cancel, as {@link Fire}.
+	 */
+	static class Watchdog extends TimingWheel.Timeout {
+		volatile TimerImpl	timer;
+		volatile TimerTask	task;
+		volatile Thread		thread;
+		final long			threshold;
+
+		Watchdog(TimerImpl timer, TimerTask task, Thread thread, long threshold) {
+			this.timer = timer;
+			this.task = task;
+			this.thread = thread;
+			this.threshold = threshold;
+		}
+
+		@Override
+		void cancelled() {
+			timer = null;
+			task = null;
+			thread = null;
+		}
+
+		@Override
+		void expired() {
+			TimerImpl timer = this.timer;
+			TimerTask task = this.task;
+			Thread thread = this.thread;
+			if (timer == null || task == null || thread == null)
+				return;
+			timer.stats.overruns.incrementAndGet();
+			LogService log = timer.log;
+			if (log == null)
+				return;
+			// The stack of the blocked thread tells where the task is stuck
+			Throwable where = new Throwable("Stack of " + thread.getName());
+			where.setStackTrace(thread.getStackTrace());
+			log.log(LogService.LOG_WARNING, String.format(
+					"Task %s of bundle %s has been running for more than %d ms, delaying the other tasks",
+					task.getClass().getName(), timer.owner, threshold), where);
+		}
+	}
+
+	// Number of registries shared by the tasks of a single execution
+	static final int					REGISTRIES	= 4;
+
+	final Drain							drain		= new Drain();
+	final TimerStats					stats		= new TimerStats();
+	TimingWheel							shared;
+	Executor							executor;
+	Registry[]							registered;
+	LogTracker							log;
+	String								owner;
+	// Pending and due executions of the bundle, the fixed-rate tasks due or
+	// running, whether one of them is running, and whether the timer was
+	// cancelled, all guarded by this
+	final Map<TimerTask,Fire>			pending		= new IdentityHashMap<TimerTask,Fire>();
+	final Queue<Fire>					due			= new LinkedList<Fire>();
+	final Set<TimerTask>				busy		= Collections
+															.newSetFromMap(new IdentityHashMap<TimerTask,Boolean>());
+	boolean								draining;
+	boolean								cancelled;
+
+	public TimerImpl() {
+		super.cancel(); // the thread of java.util.Timer is not needed
+	}
+
+	@Activate
+	void activate(ComponentContext context) {
+		activate(context.getProperties());
+		log = new LogTracker(context.getBundleContext());
+		log.open();
+		Bundle bundle = context.getUsingBundle();
+		owner = bundle.getSymbolicName();
+		stats.register("type=Timer,bundle=" + ObjectName.quote(owner) + ",id=" + bundle.getBundleId());
+	}
+
+	void activate(Dictionary< ? , ? > properties) {
+		Config config = Configurable.createConfigurable(Config.class, properties);
+		blockedThreshold = config.blockedThreshold();
+		synchronized (TimerImpl.class) {
+			if (users++ == 0) {
+				wheel = new TimingWheel("Timer wheel", TimeUnit.MILLISECONDS.toNanos(Math.max(config.tick(), 1)),
+						config.buckets());
+				int threads = Math.max(config.threads(), 1);
+				pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+							int	n;
+
+							public synchronized Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "Timer-" + ++n);
+								t.setDaemon(true);
+								return t;
+							}
+						});
+				registries = new Registry[REGISTRIES];
+				for (int i = 0; i < registries.length; i++)
+					registries[i] = new Registry();
+			}
+			shared = wheel;
+			executor = pool;
+			registered = registries;
+		}
+	}
+
+	/**
+	 * Resizes the shared pool and updates the blocked threshold. A new tick
+	 * or number of buckets only applies once the wheel is created again, when
+	 * no bundle uses it anymore.
+	 */
+	@Modified
+	void modified(ComponentContext context) {
+		modified(context.getProperties());
+	}
+
+	void modified(Dictionary< ? , ? > properties) {
+		Config config = Configurable.createConfigurable(Config.class, properties);
+		blockedThreshold = config.blockedThreshold();
+		int threads = Math.max(config.threads(), 1);
+		synchronized (TimerImpl.class) {
+			if (threads > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threads);
+				pool.setCorePoolSize(threads);
+			} else {
+				pool.setCorePoolSize(threads);
+				pool.setMaximumPoolSize(threads);
+			}
+		}
+	}
 
 	@Deactivate
 	void deactivate() {
-		super.cancel();
+		cancel();
+		stats.unregister();
+		if (log != null)
+			log.close();
+		synchronized (TimerImpl.class) {
+			if (--users == 0) {
+				wheel.stop();
+				wheel = null;
+				pool.shutdown();
+				pool = null;
+				for (Registry registry : registries)
+					registry.close();
+				registries = null;
+			}
+		}
 	}
 
+	@Override
+	public void schedule(TimerTask task, long delay) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		sched(task, System.currentTimeMillis() + delay, 0, 0, 0);
+	}
+
+	@Override
+	public void schedule(TimerTask task, Date time) {
+		sched(task, time.getTime(), 0, 0, 0);
+	}
+
+	@Override
+	public void schedule(TimerTask task, long delay, long period) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, System.currentTimeMillis() + delay, -period, 0, 0);
+	}
+
+	@Override
+	public void schedule(TimerTask task, Date firstTime, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, firstTime.getTime(), -period, 0, 0);
+	}
+
+	@Override
+	public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, System.currentTimeMillis() + delay, period, 0, 0);
+	}
+
+	@Override
+	public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, firstTime.getTime(), period, 0, 0);
+	}
+
+	public void scheduleWithSlack(TimerTask task, long delay, long slack) {
+		if (slack < 0)
+			throw new IllegalArgumentException("Negative slack.");
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		sched(task, System.currentTimeMillis() + delay, 0, slack, 0);
+	}
+
+	public void scheduleWithSlack(TimerTask task, long delay, long period, long slack, long jitter) {
+		checkSlack(slack, jitter);
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, System.currentTimeMillis() + delay, -period, slack, jitter);
+	}
+
+	public void scheduleAtFixedRateWithSlack(TimerTask task, long delay, long period, long slack, long jitter) {
+		checkSlack(slack, jitter);
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay.");
+		if (period <= 0)
+			throw new IllegalArgumentException("Non-positive period.");
+		sched(task, System.currentTimeMillis() + delay, period, slack, jitter);
+	}
+
+	/**
+	 * Discards all the pending tasks of this timer. Other bundles are not
+	 * affected.
+	 */
+	@Override
+	public void cancel() {
+		List<Fire> dropped;
+		synchronized (this) {
+			cancelled = true;
+			dropped = new ArrayList<Fire>(due);
+			dropped.addAll(pending.values());
+			due.clear();
+			pending.clear();
+			busy.clear();
+		}
+		for (Fire f : dropped) {
+			f.drop();
+			f.cancel();
+		}
+		// The registries must not keep the tasks of a bundle going away
+		if (!dropped.isEmpty())
+			for (Registry registry : registered)
+				registry.flush();
+	}
+
+	/**
+	 * Cancels the task as {@link TimerTask#cancel()} does, and also takes its
+	 * next execution off the wheel right away, rather than when it expires.
+	 */
+	public boolean cancel(TimerTask task) {
+		boolean cancelled = task.cancel();
+		List<Fire> dropped = new ArrayList<Fire>();
+		synchronized (this) {
+			busy.remove(task);
+			Fire f = pending.remove(task);
+			if (f != null)
+				dropped.add(f);
+			for (Iterator<Fire> i = due.iterator(); i.hasNext();) {
+				f = i.next();
+				if (f.task == task) {
+					i.remove();
+					dropped.add(f);
+				}
+			}
+		}
+		for (Fire f : dropped) {
+			f.drop();
+			f.cancel();
+		}
+		return cancelled;
+	}
+
+	/**
+	 * A task cancelled through {@link TimerTask#cancel()} is removed when its
+	 * next execution expires.
+	 * 
+	 * @return 0
+	 */
+	@Override
+	public int purge() {
+		return 0;
+	}
+
+	/**
+	 * Registers the task, once and for all as java.util.Timer does, and puts
+	 * it on the wheel. A periodic task gets a registry of its own.
+	 *
+	 * @param time
+	 *            Time of the first execution, in milliseconds
+	 * @param period
+	 *            Positive for a fixed rate, negative for a fixed delay, 0 for
+	 *            a single execution
+	 * @param slack
+	 *            How late each execution may run, in milliseconds
+	 * @param jitter
+	 *            Upper bound of the random delay of each execution, in
+	 *            milliseconds
+	 */
+	private void sched(TimerTask task, long time, long period, long slack, long jitter) {
+		if (time < 0)
+			throw new IllegalArgumentException("Illegal execution time.");
+
+		Registry own = period == 0 ? null : new Registry();
+		try {
+			synchronized (this) {
+				if (cancelled)
+					throw new IllegalStateException("Timer already cancelled.");
+
+				Registry registry = own != null ? own : registered[(System.identityHashCode(task) & 0x7fffffff)
+						% registered.length];
+				registry.register(task, time, period);
+				arm(task, registry, time, period, slack, jitter);
+				own = null;
+			}
+		}
+		finally {
+			if (own != null)
+				own.close();
+		}
+		stats.scheduled.incrementAndGet();
+	}
+
+	/**
+	 * Must be called with this timer locked. The jitter only delays the
+	 * timeout: the task keeps its nominal execution time, from which the next
+	 * execution of a fixed-rate task is computed.
+	 */
+	void arm(TimerTask task, Registry registry, long time, long period, long slack, long jitter) {
+		Fire f = new Fire(this, task, registry, time, period, slack, jitter);
+		pending.put(task, f);
+		long delay = time + jitter(jitter) - System.currentTimeMillis();
+		shared.schedule(f, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay),
+				TimeUnit.MILLISECONDS.toNanos(slack));
+	}
+
+	private static void checkSlack(long slack, long jitter) {
+		if (slack < 0)
+			throw new IllegalArgumentException("Negative slack.");
+		if (jitter < 0)
+			throw new IllegalArgumentException("Negative jitter.");
+	}
+
+	/**
+	 * @return a random delay between 0 inclusive and jitter exclusive, in
+	 *         milliseconds
+	 */
+	private static long jitter(long jitter) {
+		if (jitter == 0)
+			return 0;
+		return (long) (random.nextDouble() * jitter);
+	}
+
+	void execute() {
+		try {
+			executor.execute(drain);
+		}
+		catch (RejectedExecutionException e) {
+			// the pool is shut down, the last bundle using it is leaving
+			synchronized (this) {
+				draining = false;
+			}
+		}
+	}
+
+	/**
+	 * Called by the tick thread when the timeout of an execution expires:
+	 * queues the execution. The next execution of a fixed-rate task is put on
+	 * the wheel right away, so that the task keeps its rate, but is skipped
+	 * while the previous one is due or running. A fixed-delay task stays
+	 * pending until it ran, see {@link #ran(Fire, TimerTask)}.
+	 */
+	void expired(Fire f) {
+		synchronized (this) {
+			TimerTask task = f.task;
+			if (cancelled || task == null || pending.get(task) != f)
+				return; // cancelled meanwhile
+			if (f.period == 0)
+				pending.remove(task);
+			else if (f.registry.isCancelled()) {
+				pending.remove(task);
+				busy.remove(task);
+				f.registry.close();
+				return;
+			} else if (f.period > 0) {
+				arm(task, f.registry, f.time + f.period, f.period, f.slack, f.jitter);
+				if (!busy.add(task))
+					return;
+			}
+
+			due.add(f);
+			if (draining)
+				return;
+			draining = true;
+		}
+		execute();
+	}
+
+	/**
+	 * Called once an execution ran: the next execution of a fixed-delay task
+	 * is put on the wheel, a period after the end of this one.
+	 */
+	void ran(Fire f, TimerTask task) {
+		synchronized (this) {
+			if (f.period > 0)
+				busy.remove(task);
+			else if (f.period < 0 && !cancelled && pending.get(task) == f)
+				arm(task, f.registry, System.currentTimeMillis() - f.period, f.period, f.slack, f.jitter);
+		}
+	}
 }
@@ -0,0 +1,97 @@
+package org.bndtools.rt.timer;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import org.bndtools.rt.utils.stats.*;
+
+/**
+ * Statistics of the timer of a bundle, which can be registered as an MBean in
+ * the platform MBean server.
+ */
+class TimerStats implements TimerStatsMBean {
+	static final String	DOMAIN		= "org.bndtools.rt.timer";
+
+	final AtomicLong	scheduled	= new AtomicLong();
+	final AtomicLong	executed	= new AtomicLong();
+	final AtomicLong	overruns	= new AtomicLong();
+	final Histogram		lateness	= new Histogram();
+	final Histogram		execution	= new Histogram();
+	ObjectName			name;
+
+	public long getScheduled() {
+		return scheduled.get();
+	}
+
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	public long getOverruns() {
+		return overruns.get();
+	}
+
+	public double getLatenessMean() {
+		return lateness.mean();
+	}
+
+	public long getLatenessP50() {
+		return lateness.percentile(0.5);
+	}
+
+	public long getLatenessP99() {
+		return lateness.percentile(0.99);
+	}
+
+	public long getLatenessMax() {
+		return lateness.max();
+	}
+
+	public double getExecutionMean() {
+		return execution.mean();
+	}
+
+	public long getExecutionP50() {
+		return execution.percentile(0.5);
+	}
+
+	public long getExecutionP99() {
+		return execution.percentile(0.99);
+	}
+
+	public long getExecutionMax() {
+		return execution.max();
+	}
+
+	/**
+	 * Registers these statistics in the platform MBean server. The statistics
+	 * are still recorded if the registration fails.
+	 * 
+	 * @param properties
+	 *            The key properties of the object name
+	 */
+	void register(String properties) {
+		try {
+			ObjectName on = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			name = on;
+		}
+		catch (Exception e) {
+			// no MBean server available or name already taken
+		}
+	}
+
+	void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (Exception e) {
+			// already unregistered
+		}
+		name = null;
+	}
+}
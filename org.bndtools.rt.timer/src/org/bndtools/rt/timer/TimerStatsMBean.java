@@ -0,0 +1,47 @@
+package org.bndtools.rt.timer;
+
+/**
+ * Management interface of the statistics of the timer of a bundle. The
+ * durations are in microseconds.
+ */
+public interface TimerStatsMBean {
+
+	/**
+	 * @return the number of tasks scheduled, each periodic task counting once
+	 */
+	long getScheduled();
+
+	/**
+	 * @return the number of executions of the tasks
+	 */
+	long getExecuted();
+
+	/**
+	 * @return the number of executions which blocked a thread of the timer
+	 *         for longer than the configured threshold
+	 */
+	long getOverruns();
+
+	/**
+	 * @return the mean time between the scheduled execution time of the tasks
+	 *         and their start, including their slack and jitter
+	 */
+	double getLatenessMean();
+
+	long getLatenessP50();
+
+	long getLatenessP99();
+
+	long getLatenessMax();
+
+	/**
+	 * @return the mean time spent by the tasks running
+	 */
+	double getExecutionMean();
+
+	long getExecutionP50();
+
+	long getExecutionP99();
+
+	long getExecutionMax();
+}
@@ -0,0 +1,328 @@
+package org.bndtools.rt.timer;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hashed timing wheel: a circular array of buckets, each bucket holding the
+ * timeouts expiring in one tick, and a single thread moving to the next
+ * bucket at every tick. Timeouts more than one revolution away are kept in
+ * their bucket with the number of remaining rounds. Scheduling and
+ * cancelling a timeout only push it on a lock-free stack processed by the
+ * tick thread, so that both are O(1), never contend on a shared lock and do
+ * not allocate, whatever the number of pending timeouts. The price is a
+ * precision of one tick. The tick thread only wakes up for the ticks whose
+ * bucket holds timeouts, so that timeouts expiring in the same tick, e.g.
+ * thanks to their slack, share a single wake-up.
+ */
+class TimingWheel {
+
+	static final int	INIT		= 0;
+	static final int	CANCELLED	= 1;
+	static final int	EXPIRED		= 2;
+
+	/**
+	 * A task waiting for its deadline. The links are intrusive, so that a
+	 * timeout is the only object allocated per scheduled task. All the fields
+	 * but the state and the stack links are only used by the tick thread.
+	 */
+	static abstract class Timeout {
+		volatile int	state;
+		TimingWheel		wheel;
+		// Nanoseconds since the start of the wheel
+		long			deadline;
+		long			rounds;
+		Timeout			next;
+		Timeout			prev;
+		Bucket			bucket;
+		Timeout			nextAdded;
+		Timeout			nextCancelled;
+
+		/**
+		 * Runs the task, in the tick thread.
+		 */
+		abstract void expired();
+
+		/**
+		 * Called once the timeout is cancelled, so that the task can be
+		 * released without waiting for the tick thread.
+		 */
+		void cancelled() {}
+
+		/**
+		 * @return true if the task was prevented from running
+		 */
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED))
+				return false;
+			cancelled();
+			if (wheel != null)
+				wheel.push(wheel.cancelled, this, false);
+			return true;
+		}
+
+		boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		void expire() {
+			if (!STATE.compareAndSet(this, INIT, EXPIRED))
+				return;
+			try {
+				expired();
+			}
+			catch (Throwable t) {
+				// the task is responsible for its own failures, the wheel
+				// must keep ticking
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of a tick, so that a cancelled
+	 * timeout is unlinked in constant time.
+	 */
+	static class Bucket {
+		Timeout	head;
+		Timeout	tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null)
+				head = tail = t;
+			else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		void remove(Timeout t) {
+			if (t.prev != null)
+				t.prev.next = t.next;
+			else
+				head = t.next;
+			if (t.next != null)
+				t.next.prev = t.prev;
+			else
+				tail = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+	}
+
+	static final AtomicIntegerFieldUpdater<Timeout>	STATE		= AtomicIntegerFieldUpdater.newUpdater(Timeout.class,
+																	"state");
+
+	final long						tickNanos;
+	final Bucket[]					wheel;
+	final int						mask;
+	// Stacks of the timeouts added and cancelled since the last tick
+	final AtomicReference<Timeout>	added		= new AtomicReference<Timeout>();
+	final AtomicReference<Timeout>	cancelled	= new AtomicReference<Timeout>();
+	final long						start		= System.nanoTime();
+	final Thread					worker;
+	volatile boolean				stopped;
+	// Time until which the tick thread sleeps, in nanoseconds since the
+	// start, or -1 while it is awake
+	volatile long					wakeUp		= -1;
+	// Next tick to process, only used by the tick thread
+	long							tick;
+
+	/**
+	 * @param tickNanos
+	 *            Duration of a tick, in nanoseconds
+	 * @param buckets
+	 *            Number of buckets, rounded up to a power of two
+	 */
+	TimingWheel(String name, long tickNanos, int buckets) {
+		this.tickNanos = tickNanos;
+		int n = 1;
+		while (n < buckets)
+			n <<= 1;
+		wheel = new Bucket[n];
+		for (int i = 0; i < n; i++)
+			wheel[i] = new Bucket();
+		mask = n - 1;
+
+		worker = new Thread(name) {
+			@Override
+			public void run() {
+				tick();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * @param deadline
+	 *            Time at which the task should run, in System.nanoTime() units
+	 * @param slack
+	 *            How much later than its deadline the task may run, in
+	 *            nanoseconds. The deadline is moved within this window to a
+	 *            multiple of a coarse granularity, so that timeouts with
+	 *            overlapping windows expire in the same tick.
+	 */
+	void schedule(Timeout t, long deadline, long slack) {
+		long d = Math.max(deadline - start, 0);
+		long ticks = slack / tickNanos;
+		if (ticks > 0) {
+			long granularity = Long.highestOneBit(ticks) * tickNanos;
+			d = Math.max(d, (d + slack) / granularity * granularity);
+		}
+		t.wheel = this;
+		t.deadline = d;
+		push(added, t, true);
+		if (d < wakeUp)
+			LockSupport.unpark(worker);
+	}
+
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(worker);
+	}
+
+	void push(AtomicReference<Timeout> stack, Timeout t, boolean add) {
+		Timeout head;
+		do {
+			head = stack.get();
+			if (add)
+				t.nextAdded = head;
+			else
+				t.nextCancelled = head;
+		} while (!stack.compareAndSet(head, t));
+	}
+
+	/**
+	 * Processes the buckets holding timeouts, and only them: the tick thread
+	 * sleeps over the empty ones, and while the wheel is empty. It is only
+	 * woken up by the timeouts expiring before the bucket it waits for.
+	 */
+	void tick() {
+		while (!stopped) {
+			removeCancelled();
+			transferAdded();
+			long next = nextBusyTick();
+
+			// The timeouts added from now on wake the thread up if they expire
+			// before the bucket, the ones added before are transferred here
+			wakeUp = wakeUp(next);
+			if (transferAdded()) {
+				next = nextBusyTick();
+				wakeUp = wakeUp(next);
+			}
+			long now = sleep();
+
+			// Last tick whose end has been reached
+			long reached = now / tickNanos - 1;
+			if (next >= 0 && reached >= next) {
+				tick = next;
+				expire(wheel[(int) (tick & mask)], now);
+				tick++;
+			} else if (reached >= tick) {
+				// Woken up early, the buckets up to now are empty
+				tick = reached + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the first tick of the next revolution whose bucket holds
+	 *         timeouts, or -1 if the wheel is empty
+	 */
+	private long nextBusyTick() {
+		for (long t = tick; t < tick + wheel.length; t++) {
+			if (wheel[(int) (t & mask)].head != null)
+				return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the end of the given tick, in nanoseconds since the start
+	 */
+	private long wakeUp(long tick) {
+		return tick < 0 ? Long.MAX_VALUE : tickNanos * (tick + 1);
+	}
+
+	/**
+	 * Sleeps until {@link #wakeUp}, unless woken up earlier.
+	 *
+	 * @return the current time, in nanoseconds since the start
+	 */
+	private long sleep() {
+		try {
+			long now = System.nanoTime() - start;
+			long delay = wakeUp - now;
+			if (stopped || delay <= 0)
+				return now;
+			if (wakeUp == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, delay);
+			return System.nanoTime() - start;
+		}
+		finally {
+			wakeUp = -1;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout t = cancelled.getAndSet(null);
+		while (t != null) {
+			Timeout next = t.nextCancelled;
+			t.nextCancelled = null;
+			if (t.bucket != null)
+				t.bucket.remove(t);
+			t = next;
+		}
+	}
+
+	/**
+	 * @return true if timeouts were added to the wheel
+	 */
+	private boolean transferAdded() {
+		Timeout t = added.getAndSet(null);
+		if (t == null)
+			return false;
+
+		// The stack is in reverse order of scheduling
+		Timeout reversed = null;
+		while (t != null) {
+			Timeout next = t.nextAdded;
+			t.nextAdded = reversed;
+			reversed = t;
+			t = next;
+		}
+
+		t = reversed;
+		while (t != null) {
+			Timeout next = t.nextAdded;
+			t.nextAdded = null;
+			if (!t.isCancelled()) {
+				long ticks = t.deadline / tickNanos;
+				t.rounds = (ticks - tick) / wheel.length;
+				// Overdue timeouts go into the current bucket
+				wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+			}
+			t = next;
+		}
+		return true;
+	}
+
+	private void expire(Bucket bucket, long now) {
+		Timeout t = bucket.head;
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.isCancelled())
+				bucket.remove(t);
+			else if (t.rounds <= 0 && t.deadline <= now) {
+				bucket.remove(t);
+				t.expire();
+			} else
+				t.rounds--;
+			t = next;
+		}
+	}
+}
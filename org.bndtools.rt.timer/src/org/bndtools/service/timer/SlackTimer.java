@@ -0,0 +1,97 @@
+package org.bndtools.service.timer;
+
+import java.util.TimerTask;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * A {@link java.util.Timer} accepting some imprecision on the execution time
+ * of its tasks. The slack lets the timer run several tasks due at about the
+ * same time on a single wake-up, and the jitter spreads periodic tasks
+ * started together, so that they do not all fire at the same time.
+ */
+@ProviderType
+public interface SlackTimer {
+
+	/**
+	 * Schedules the task for execution after the given delay, or up to
+	 * {@code slack} milliseconds later.
+	 * 
+	 * @param task
+	 *            The task to schedule
+	 * @param delay
+	 *            Delay before the task runs, in milliseconds
+	 * @param slack
+	 *            How late the task may run, in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the delay or the slack is negative
+	 * @throws IllegalStateException
+	 *             if the task was already scheduled or cancelled, or the
+	 *             timer was cancelled
+	 */
+	void scheduleWithSlack(TimerTask task, long delay, long slack);
+
+	/**
+	 * Schedules the task for repeated fixed-delay execution, as
+	 * {@link java.util.Timer#schedule(TimerTask, long, long)} does. Every
+	 * execution is delayed by a random duration between 0 and {@code jitter},
+	 * and may run up to {@code slack} milliseconds later.
+	 * 
+	 * @param task
+	 *            The task to schedule
+	 * @param delay
+	 *            Delay before the first execution, in milliseconds
+	 * @param period
+	 *            Time between the end of an execution and the next one, in
+	 *            milliseconds
+	 * @param slack
+	 *            How late each execution may run, in milliseconds
+	 * @param jitter
+	 *            Upper bound of the random delay added to each execution, in
+	 *            milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the delay, the slack or the jitter is negative, or the
+	 *             period is not positive
+	 * @throws IllegalStateException
+	 *             if the task was already scheduled or cancelled, or the
+	 *             timer was cancelled
+	 */
+	void scheduleWithSlack(TimerTask task, long delay, long period, long slack, long jitter);
+
+	/**
+	 * Schedules the task for repeated fixed-rate execution, as
+	 * {@link java.util.Timer#scheduleAtFixedRate(TimerTask, long, long)}
+	 * does. The random delay of an execution does not shift the next ones, so
+	 * that the task keeps its average rate.
+	 * 
+	 * @param task
+	 *            The task to schedule
+	 * @param delay
+	 *            Delay before the first execution, in milliseconds
+	 * @param period
+	 *            Time between the starts of two executions, in milliseconds
+	 * @param slack
+	 *            How late each execution may run, in milliseconds
+	 * @param jitter
+	 *            Upper bound of the random delay added to each execution, in
+	 *            milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the delay, the slack or the jitter is negative, or the
+	 *             period is not positive
+	 * @throws IllegalStateException
+	 *             if the task was already scheduled or cancelled, or the
+	 *             timer was cancelled
+	 */
+	void scheduleAtFixedRateWithSlack(TimerTask task, long delay, long period, long slack, long jitter);
+
+	/**
+	 * Cancels a task as {@link TimerTask#cancel()} does, and also releases
+	 * its next execution right away, rather than when it is due.
+	 * 
+	 * @param task
+	 *            The task to cancel
+	 * @return the result of {@link TimerTask#cancel()}: true if an execution
+	 *         of the task was prevented
+	 */
+	boolean cancel(TimerTask task);
+}
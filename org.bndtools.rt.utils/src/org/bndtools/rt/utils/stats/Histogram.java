@@ -0,0 +1,206 @@
+package org.bndtools.rt.utils.stats;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Histogram of durations with sub-divided logarithmic buckets, as in
+ * HdrHistogram: the values are grouped by their highest bit, and every group
+ * is split into {@link #SUB_BUCKETS} buckets of equal width, so that the
+ * bounds of the bucket of a value are within 12.5% of the value, whatever its
+ * range. The values below the number of sub buckets are counted exactly.
+ * Recording a value does not allocate nor lock, and the threads recording
+ * concurrently mostly update stripes of their own, which are summed when the
+ * histogram is read.
+ */
+public class Histogram {
+	static final int	SUB_BITS	= 3;
+	static final int	SUB_BUCKETS	= 1 << SUB_BITS;
+	static final int	BUCKETS		= (64 - SUB_BITS) * SUB_BUCKETS;
+	// Slots of a stripe: the sum and the maximum, then the buckets
+	static final int	SUM			= 0;
+	static final int	MAX			= 1;
+	static final int	FIRST		= 2;
+	static final int	STRIPES		= stripes();
+
+	/**
+	 * Summary of a histogram at a point in time, with durations in
+	 * microseconds. The percentiles are the upper bounds of the buckets
+	 * holding them, capped by the maximum.
+	 */
+	public static class Snapshot {
+		final long		count;
+		final double	mean;
+		final long		p50;
+		final long		p90;
+		final long		p99;
+		final long		max;
+
+		Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+	}
+
+	// A stripe per group of threads, each large enough to keep the hot slots
+	// of two stripes on distinct cache lines
+	final AtomicLongArray[]	stripes	= new AtomicLongArray[STRIPES];
+
+	public Histogram() {
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new AtomicLongArray(FIRST + BUCKETS);
+	}
+
+	/**
+	 * @param nanos
+	 *            A duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+		stripe.incrementAndGet(FIRST + index(nanos));
+		stripe.addAndGet(SUM, nanos);
+		long m;
+		while (nanos > (m = stripe.get(MAX)) && !stripe.compareAndSet(MAX, m, nanos))
+			;
+	}
+
+	public long count() {
+		return total(counts());
+	}
+
+	/**
+	 * @return the sum of the values, in nanoseconds
+	 */
+	public long sum() {
+		long sum = 0;
+		for (AtomicLongArray stripe : stripes)
+			sum += stripe.get(SUM);
+		return sum;
+	}
+
+	/**
+	 * @return the mean, in microseconds
+	 */
+	public double mean() {
+		long count = count();
+		return count == 0 ? 0 : sum() / 1000.0 / count;
+	}
+
+	/**
+	 * @return the maximum, in microseconds
+	 */
+	public long max() {
+		long max = 0;
+		for (AtomicLongArray stripe : stripes)
+			max = Math.max(max, stripe.get(MAX));
+		return max / 1000;
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the percentile, capped by
+	 *         the maximum, in microseconds
+	 */
+	public long percentile(double percentile) {
+		long[] counts = counts();
+		return percentile(counts, total(counts), percentile);
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = counts();
+		long count = total(counts);
+		if (count == 0)
+			return new Snapshot(0, 0, 0, 0, 0, 0);
+		return new Snapshot(count, sum() / 1000.0 / count, percentile(counts, count, 0.5), percentile(counts,
+				count, 0.9), percentile(counts, count, 0.99), max());
+	}
+
+	/**
+	 * @return the bucket of a positive value
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int high = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (high - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (high - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value counted in a bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * @return a power of two, at least the number of processors
+	 */
+	static int stripes() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < processors && stripes < 16)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	private long[] counts() {
+		long[] counts = new long[BUCKETS];
+		for (AtomicLongArray stripe : stripes)
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += stripe.get(FIRST + i);
+		return counts;
+	}
+
+	private static long total(long[] counts) {
+		long count = 0;
+		for (long c : counts)
+			count += c;
+		return count;
+	}
+
+	private long percentile(long[] counts, long count, double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i) / 1000, max());
+		}
+		return max();
+	}
+}
@@ -0,0 +1,93 @@
+package org.bndtools.service.store;
+
+import java.util.concurrent.*;
+
+/**
+ * Non blocking view of a {@link Cursor}, obtained from {@link Cursor#async()}.
+ * The query is the one built on the cursor, and the endpoints run on threads
+ * of the store implementation.
+ * <p>
+ * The documents are published to {@link Subscriber}s with the same protocol as
+ * the {@code java.util.concurrent.Flow} and Reactive Streams interfaces,
+ * which are mirrored here: the documents are fetched from the database by
+ * batches no larger than the outstanding demand, and not fetched at all while
+ * there is no demand.
+ * 
+ * @param <T> See {@link org.bndtools.service.store}
+ */
+public interface AsyncCursor<T> {
+
+	/**
+	 * Receives the documents of a cursor, see {@link AsyncCursor#subscribe(Subscriber)}.
+	 * 
+	 * @param <T> See {@link org.bndtools.service.store}
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called once, before any other method.
+		 * 
+		 * @param subscription Used to request documents
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next document, never more times than requested.
+		 * 
+		 * @param document
+		 */
+		void onNext(T document);
+
+		/**
+		 * Called once if the query failed, then no other method is called.
+		 * 
+		 * @param failure
+		 */
+		void onError(Throwable failure);
+
+		/**
+		 * Called once after the last document, then no other method is called.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * Link between a cursor and one of its {@link Subscriber}s.
+	 */
+	public interface Subscription {
+		/**
+		 * Requests more documents. The demand adds up, {@link Long#MAX_VALUE}
+		 * requests all of them.
+		 * 
+		 * @param n A positive number of documents
+		 */
+		void request(long n);
+
+		/**
+		 * Stops publishing the documents and closes the database cursor.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * Returns the first element of the cursor. See {@link Cursor#first()}.
+	 * 
+	 * @return A stage completed with the first element of the cursor, or with
+	 *         null if there is none
+	 */
+	CompletionStage<T> first();
+
+	/**
+	 * Returns the number of documents in the cursor. See {@link Cursor#count()}.
+	 * 
+	 * @return A stage completed with the number of documents in the cursor
+	 */
+	CompletionStage<Integer> count();
+
+	/**
+	 * Publishes the documents of the cursor to the given subscriber, as it
+	 * requests them. Every subscription runs the query again.
+	 * 
+	 * @param subscriber
+	 */
+	void subscribe(Subscriber< ? super T> subscriber);
+}
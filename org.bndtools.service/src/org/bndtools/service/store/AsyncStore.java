@@ -0,0 +1,47 @@
+package org.bndtools.service.store;
+
+import java.util.concurrent.*;
+
+/**
+ * Non blocking view of a {@link Store}, obtained from {@link Store#async()}.
+ * The operations run on threads of the store implementation, and the returned
+ * stages are completed once the database answered, so that the calling thread
+ * is not held while waiting for the database. A failed operation completes its
+ * stage exceptionally, with the exception the blocking method would throw.
+ * 
+ * @param <T> See {@link org.bndtools.service.store}
+ */
+public interface AsyncStore<T> {
+
+	/**
+	 * Inserts a document in the database. See {@link Store#insert(Object)}.
+	 * 
+	 * @param document Document to insert in the database
+	 * @return A stage completed with the original document
+	 */
+	CompletionStage<T> insert(T document);
+
+	/**
+	 * Updates a document in the database. See {@link Store#update(Object, String...)}.
+	 * 
+	 * @param document Document containing information to update in the database
+	 * @param fields Update exclusively those fields
+	 * @return A stage completed once the document is updated
+	 */
+	CompletionStage<Void> update(T document, String... fields);
+
+	/**
+	 * Upserts a document in the database. See {@link Store#upsert(Object)}.
+	 * 
+	 * @param document
+	 * @return A stage completed once the document is updated or inserted
+	 */
+	CompletionStage<Void> upsert(T document);
+
+	/**
+	 * Returns the number of documents in the store.
+	 * 
+	 * @return A stage completed with the number of documents in the store
+	 */
+	CompletionStage<Long> count();
+}
@@ -0,0 +1,54 @@
+package org.bndtools.service.store;
+
+import java.util.*;
+
+/**
+ * Writes many documents to a {@link Store} with a few round trips to the
+ * database, rather than one or more per document. Obtained from
+ * {@link Store#batch()}, and configured with the builder pattern.
+ *
+ * @param <T> See {@link org.bndtools.service.store}
+ */
+public interface Batch<T> {
+
+	/**
+	 * Sets the maximum number of documents sent to the database at once.
+	 * 
+	 * @param size Number of documents per batch, 1000 by default
+	 * @return this (Builder Pattern)
+	 */
+	Batch<T> size(int size);
+
+	/**
+	 * Sets whether the documents are written in order. In ordered mode, the
+	 * first failure stops the batch, and the next documents are reported as
+	 * {@link BatchResult.Status#SKIPPED}. Otherwise, every document is
+	 * attempted whatever the failures of the others. Ordered by default.
+	 * 
+	 * @param ordered Whether to stop at the first failure
+	 * @return this (Builder Pattern)
+	 */
+	Batch<T> ordered(boolean ordered);
+
+	/**
+	 * Inserts the documents in the database. The documents without an _id
+	 * are given one, as with {@link Store#insert(Object)}. A document whose
+	 * _id is already in the database is reported as
+	 * {@link BatchResult.Status#DUPLICATE}.
+	 * 
+	 * @param documents Documents to insert
+	 * @return The result of the insertion of every document
+	 * @throws Exception if the database cannot be reached
+	 */
+	BatchResult<T> insertAll(Collection< ? extends T> documents) throws Exception;
+
+	/**
+	 * Upserts the documents in the database, as with
+	 * {@link Store#upsert(Object)}.
+	 * 
+	 * @param documents Documents to upsert
+	 * @return The result of the upsert of every document
+	 * @throws Exception if the database cannot be reached
+	 */
+	BatchResult<T> upsertAll(Collection< ? extends T> documents) throws Exception;
+}
@@ -0,0 +1,114 @@
+package org.bndtools.service.store;
+
+import java.util.*;
+
+/**
+ * Result of the writes of a {@link Batch}, with one entry per document, in
+ * the order of the documents.
+ *
+ * @param <T> See {@link org.bndtools.service.store}
+ */
+public class BatchResult<T> implements Iterable<BatchResult.Entry<T>> {
+
+	/**
+	 * What happened to a document of the batch
+	 */
+	public enum Status {
+		/** The document was inserted */
+		INSERTED,
+		/** The document replaced the one with the same _id */
+		UPDATED,
+		/** The insertion failed because of a duplicate key */
+		DUPLICATE,
+		/** The write failed for another reason */
+		FAILED,
+		/** The document was not written, because an ordered batch stopped before it */
+		SKIPPED;
+	}
+
+	/**
+	 * Result of the write of a document
+	 *
+	 * @param <T> See {@link org.bndtools.service.store}
+	 */
+	public static class Entry<T> {
+		public final T		document;
+		public final Status	status;
+		/** The error reported by the database, or null if the write succeeded or was skipped */
+		public final String	error;
+
+		public Entry(T document, Status status, String error) {
+			this.document = document;
+			this.status = status;
+			this.error = error;
+		}
+
+		public boolean isSuccess() {
+			return status == Status.INSERTED || status == Status.UPDATED;
+		}
+
+		@Override
+		public String toString() {
+			return status + (error == null ? "" : " (" + error + ")") + ": " + document;
+		}
+	}
+
+	final List<Entry<T>>	entries	= new ArrayList<Entry<T>>();
+
+	public void add(T document, Status status, String error) {
+		entries.add(new Entry<T>(document, status, error));
+	}
+
+	public Iterator<Entry<T>> iterator() {
+		return Collections.unmodifiableList(entries).iterator();
+	}
+
+	/**
+	 * @return The result of the index-th document of the batch
+	 */
+	public Entry<T> get(int index) {
+		return entries.get(index);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of documents with the given status
+	 */
+	public int count(Status status) {
+		int n = 0;
+		for (Entry<T> entry : entries)
+			if (entry.status == status)
+				n++;
+		return n;
+	}
+
+	/**
+	 * @return The entries of the documents which were not written
+	 */
+	public List<Entry<T>> failures() {
+		List<Entry<T>> failures = new ArrayList<Entry<T>>();
+		for (Entry<T> entry : entries)
+			if (!entry.isSuccess())
+				failures.add(entry);
+		return failures;
+	}
+
+	/**
+	 * @return true if all the documents were written
+	 */
+	public boolean isSuccess() {
+		for (Entry<T> entry : entries)
+			if (!entry.isSuccess())
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult[inserted=" + count(Status.INSERTED) + ", updated=" + count(Status.UPDATED)
+				+ ", failed=" + failures().size() + "]";
+	}
+}
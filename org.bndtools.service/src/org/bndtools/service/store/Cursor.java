@@ -21,8 +21,8 @@ import java.util.*;
  * from the store.
  * 
  * <p>
- * {@link Cursor#limit(int)}, {@link Cursor#skip(int)}, {@link Cursor#select(String...)}, {@link Cursor#slice(String, int)},
- * and sorting operations have no effect on update actions.
+ * {@link Cursor#limit(int)}, {@link Cursor#skip(int)}, {@link Cursor#after(Object)}, {@link Cursor#select(String...)}, 
+ * {@link Cursor#slice(String, int)}, and sorting operations have no effect on update actions.
  * 
  * @param <T> See {@link org.bndtools.service.store}
  */
@@ -76,6 +76,25 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> select(String... keys) throws Exception;
 
+	/**
+	 * Returns projections of the documents instead of the documents (Projection action). Only the given
+	 * fields are fetched, by default the public fields of a projection class or the methods of a projection
+	 * interface, and the projections are read from them alone: a class is instantiated and its fields are
+	 * set, an interface is implemented by a view over the fetched fields. The fetched fields the projection
+	 * has no place for, like the {@code _id}, are ignored.
+	 * <p>
+	 * The cursor of projections shares the query of this cursor. The selection actions taking a document,
+	 * like {@link Cursor#or(Object)} and {@link Cursor#after(Object)}, must be called before this one, and
+	 * projections cannot be updated with optimistic locking.
+	 * 
+	 * @category Projection
+	 * @param type Class or interface of the projections
+	 * @param keys Fields to return, by default the fields of the projections
+	 * @return this, as a cursor of projections (Builder Pattern)
+	 * @throws Exception
+	 */
+	<P> Cursor<P> select(Class<P> type, String... keys) throws Exception;
+
 	/**
 	 * Limits the number of element from an array field to return (Projection action). A positive count number means the first
 	 * count elements, whereas a negative count means the last count elements from the array.
@@ -98,6 +117,33 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> limit(int limit) throws Exception;
 
+	/**
+	 * Selects only the documents coming after the given one in the order of the cursor (Selection action).
+	 * This is the efficient way to page through the documents: pass the last document of a page to get 
+	 * the next page, whatever its depth, whereas {@link Cursor#skip(int)} makes the database walk through 
+	 * all the skipped documents.
+	 * <p>
+	 * The order is the one of the sort fields (see {@link Cursor#ascending(String)} and 
+	 * {@link Cursor#descending(String)}), followed by {@code _id} so that it is total. The document must 
+	 * have its {@code _id} and sort fields set, as fetched from the store. 
+	 * 
+	 * @category Selection
+	 * @param lastSeen Last document of the previous page
+	 * @return this (Builder Pattern)
+	 * @throws Exception
+	 */
+	Cursor<T> after(T lastSeen) throws Exception;
+
+	/**
+	 * Sets the number of documents fetched from the database at once while iterating over the cursor. 
+	 * The documents are streamed: whatever their number, only one batch is held in memory at a time.
+	 * 
+	 * @param batchSize Number of documents per round trip to the database, or 0 for the default of the database
+	 * @return this (Builder Pattern)
+	 * @throws Exception
+	 */
+	Cursor<T> batchSize(int batchSize) throws Exception;
+
 	/**
 	 * Skips the first {@code skip} elements from the cursor (Selection action).
 	 * 
@@ -306,6 +352,24 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	Cursor<T> query(String query, Map<String,String> templates) throws Exception;
 
+	/**
+	 * Selects documents whose words, set with {@link Cursor#text(String)} and {@link Cursor#word(String)},
+	 * match the query string, with the text index of the database (Selection action). The words are 
+	 * stemmed, so that e.g. {@code run} matches {@code running}, and the documents are returned by 
+	 * decreasing relevance, unless another order is set. {@link Cursor#visit(Visitor)} ignores the 
+	 * relevance.
+	 * <p>
+	 * A word can begin with a dash (e.g. {@code -foo}), in which case only documents that do not contain
+	 * this word are selected. If the database has no text search, this method selects the documents 
+	 * as {@link Cursor#query(String, Map)} does without templates, in no particular order.
+	 * 
+	 * @category Selection
+	 * @param query Query string, which may have several words
+	 * @return this (Builder Pattern)
+	 * @throws Exception
+	 */
+	Cursor<T> search(String query) throws Exception;
+
 	/**
 	 * Returns the first element of the cursor.
 	 * 
@@ -326,7 +390,9 @@ public interface Cursor<T> extends Iterable<T> {
 	T one() throws Exception;
 
 	/**
-	 * Returns an {@link Iterator} over all the documents in the cursor.
+	 * Returns an {@link Iterator} over all the documents in the cursor. The documents are fetched
+	 * lazily, by batches (see {@link Cursor#batchSize(int)}), and only the first {@code limit} ones 
+	 * if a limit is set.
 	 * 
 	 * @category Endpoint
 	 * @return Iterator over the documents in the cursor
@@ -336,6 +402,9 @@ public interface Cursor<T> extends Iterable<T> {
 
 	/**
 	 * Perform the operation described in {@link Visitor#visit(Object)} on each element of the cursor.
+	 * The documents are fetched by pages, each page starting after the last document of the previous 
+	 * one in the order of the sort fields then of {@code _id}, so that no cursor stays open in the 
+	 * database while the visitor runs. The sort fields should be set in every document.
 	 * 
 	 * @category Endpoint
 	 * @param visitor
@@ -344,6 +413,15 @@ public interface Cursor<T> extends Iterable<T> {
 	 */
 	boolean visit(Visitor<T> visitor) throws Exception;
 
+	/**
+	 * Returns a non blocking view of the cursor, to fetch its documents without holding
+	 * the calling thread (see {@link AsyncCursor}).
+	 * 
+	 * @category Endpoint
+	 * @return an {@link AsyncCursor} over the documents of this cursor
+	 */
+	AsyncCursor<T> async();
+
 	/**
 	 * Removes the documents in the cursor from the database. OBS: {@link Cursor#skip(int)} and {@link Cursor#limit(int)} 
 	 * have no influence on the number of documents being removed.
@@ -0,0 +1,18 @@
+package org.bndtools.service.store;
+
+import java.lang.annotation.*;
+
+/**
+ * Declares an index on a field of a document class. The indexes are created
+ * when a {@link Store} of the class is obtained with
+ * {@link DB#getStore(Class, String)}, unless they exist. Indexes on several
+ * fields are created with {@link Store#index(String...)}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Index {
+	/**
+	 * @return true if no two documents can have the same value for the field
+	 */
+	boolean unique() default false;
+}
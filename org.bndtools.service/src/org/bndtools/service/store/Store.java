@@ -1,5 +1,6 @@
 package org.bndtools.service.store;
 
+import java.util.*;
 
 /**
  * Collection of documents stored in a database. Obtained from {@link DB}.
@@ -39,6 +40,65 @@ public interface Store<T> {
 	 */
 	void upsert(T document) throws Exception;
 
+	/**
+	 * Inserts documents in the database, with as few round trips as possible. The
+	 * documents are written in order, and the first failure stops the insertion.
+	 * See {@link Batch#insertAll(Collection)}.
+	 * 
+	 * @param documents Documents to insert in the database
+	 * @return The result of the insertion of every document
+	 * @throws Exception
+	 */
+	BatchResult<T> insertAll(Collection< ? extends T> documents) throws Exception;
+
+	/**
+	 * Upserts documents in the database, with as few round trips as possible. The
+	 * documents are written in order, and the first failure stops the upsert.
+	 * See {@link Batch#upsertAll(Collection)}.
+	 * 
+	 * @param documents Documents to upsert in the database
+	 * @return The result of the upsert of every document
+	 * @throws Exception
+	 */
+	BatchResult<T> upsertAll(Collection< ? extends T> documents) throws Exception;
+
+	/**
+	 * Returns a {@link Batch} to write many documents at once, with a given batch
+	 * size or without stopping at the first failure.
+	 * 
+	 * @return a new {@link Batch} with the default settings
+	 */
+	Batch<T> batch();
+
+	/**
+	 * Returns a non blocking view of this store, whose operations complete
+	 * asynchronously. See {@link AsyncStore}.
+	 * 
+	 * @return an {@link AsyncStore} over the documents of this store
+	 */
+	AsyncStore<T> async();
+
+	/**
+	 * Creates an index on the given fields, in this order, unless it exists. A field starting 
+	 * with - is indexed in descending order. Indexes on a single field can also be declared with
+	 * {@link Index} in the document class.
+	 * 
+	 * @param keys Fields to index
+	 * @return this
+	 * @throws Exception
+	 */
+	Store<T> index(String... keys) throws Exception;
+
+	/**
+	 * Creates a unique index on the given fields, see {@link Store#index(String...)}. No two
+	 * documents can have the same values for these fields.
+	 * 
+	 * @param keys Fields to index
+	 * @return this
+	 * @throws Exception if documents of the store already have the same values
+	 */
+	Store<T> unique(String... keys) throws Exception;
+
 	/**
 	 * Returns a {@link Cursor} containing all the documents in the store.
 	 * @return a {@link Cursor} containing all the documents of the store.